@@ -0,0 +1,115 @@
+package com.p2s;
+
+import net.fabricmc.loader.impl.FabricLoaderImpl;
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * 基准测试的公共部分：在普通 JVM 中引导原版注册表，并生成可复现的合成脚本。
+ */
+final class BenchmarkSupport {
+    private static boolean bootstrapped;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 不经过 Fabric 启动器引导原版注册表；配置与存档目录指向临时目录，并放开构建上限以便测试大结构。
+     */
+    static synchronized void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+        try {
+            FabricLoaderImpl.INSTANCE.setGameDir(Files.createTempDirectory("p2s-jmh"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        ModConfig.MAX_BLOCKS_PER_BUILD = Integer.MAX_VALUE;
+        ModConfig.MAX_BUILD_SPAN = Integer.MAX_VALUE;
+        ModConfig.MAX_CHUNKS_PER_BUILD = Integer.MAX_VALUE;
+        BlockIdIndex.rebuild();
+        bootstrapped = true;
+    }
+
+    static Map<String, String> palette() {
+        Map<String, String> palette = new LinkedHashMap<>();
+        palette.put("WALL", "minecraft:stone_bricks");
+        palette.put("FLOOR", "minecraft:oak_planks");
+        palette.put("ROOF", "minecraft:dark_oak_stairs");
+        palette.put("GLASS", "minecraft:glass_pane");
+        palette.put("LOG", "minecraft:spruce_log");
+        return palette;
+    }
+
+    /**
+     * 一个覆盖约 {@code voxels} 个体素的脚本：fill 为实心立方体，frame 为同尺寸的空心盒，set 为同样数量的离散点。
+     */
+    static StructureBuilder.VbsScript script(String shape, int voxels) {
+        StructureBuilder.VbsScript script = new StructureBuilder.VbsScript();
+        script.palette = palette();
+        StructureBuilder.VbsLayer layer = new StructureBuilder.VbsLayer();
+        int side = Math.max(1, (int) Math.round(Math.cbrt(voxels)));
+        switch (shape) {
+            case "fill", "frame" -> layer.actions.add(box(shape, "WALL", 0, 0, 0, side - 1, side - 1, side - 1));
+            case "set" -> layer.actions.add(points("FLOOR", voxels, side, 42L));
+            case "mixed" -> {
+                // 接近模型输出的组合：实心地基、空心墙体、零散装饰
+                layer.actions.add(box("fill", "FLOOR", 0, 0, 0, side - 1, Math.max(0, side / 8 - 1), side - 1));
+                layer.actions.add(box("frame", "WALL", 0, 0, 0, side - 1, side - 1, side - 1));
+                layer.actions.add(points("GLASS", Math.max(1, voxels / 100), side, 7L));
+            }
+            default -> throw new IllegalArgumentException("unknown shape: " + shape);
+        }
+        script.structure.add(layer);
+        return script;
+    }
+
+    static StructureBuilder.VbsAction box(String type, String block, int x0, int y0, int z0, int x1, int y1, int z1) {
+        StructureBuilder.VbsAction action = new StructureBuilder.VbsAction();
+        action.type = type;
+        action.block = block;
+        action.from = new int[]{x0, y0, z0};
+        action.to = new int[]{x1, y1, z1};
+        return action;
+    }
+
+    static StructureBuilder.VbsAction points(String block, int count, int side, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        StructureBuilder.VbsAction action = new StructureBuilder.VbsAction();
+        action.type = "set";
+        action.block = block;
+        action.at = new int[count * 3];
+        for (int i = 0; i < action.at.length; i++) {
+            action.at[i] = random.nextInt(side);
+        }
+        return action;
+    }
+
+    /**
+     * 模型输出里常见的拼写错误与非规范写法，用于测模糊匹配。
+     */
+    static List<String> misspelledIds() {
+        List<String> ids = new ArrayList<>();
+        ids.add("minecraft:stone_brick");
+        ids.add("minecraft:oak_plank");
+        ids.add("minecraft:glass_panes");
+        ids.add("minecraft:sprucelog");
+        ids.add("minecraft:dark_oak_stair");
+        ids.add("cobble_stone");
+        ids.add("minecraft:polished_andesit");
+        ids.add("minecraft:lantern_block");
+        return ids;
+    }
+}
@@ -0,0 +1,69 @@
+package com.p2s;
+
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.state.BlockState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调色板解析、方块 id 模糊匹配与编辑距离。resolvePalette 每次都先清空解析缓存，测的是冷路径。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class PaletteBenchmark {
+    @Param({"exact", "misspelled"})
+    public String ids;
+
+    private Map<String, String> palette;
+    private List<String> misspelled;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.bootstrap();
+        misspelled = BenchmarkSupport.misspelledIds();
+        if (ids.equals("exact")) {
+            palette = BenchmarkSupport.palette();
+        } else {
+            palette = new LinkedHashMap<>();
+            for (int i = 0; i < misspelled.size(); i++) {
+                palette.put("K" + i, misspelled.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<String, BlockState> resolvePalette() {
+        StructureBuilder.clearResolvedCache();
+        return StructureBuilder.resolvePalette(palette);
+    }
+
+    @Benchmark
+    public void findClosestBlock(Blackhole blackhole) {
+        for (String raw : misspelled) {
+            ResourceLocation match = StructureBuilder.findClosestBlock(raw);
+            blackhole.consume(match);
+        }
+    }
+
+    @Benchmark
+    public void levenshtein(Blackhole blackhole) {
+        for (String raw : misspelled) {
+            blackhole.consume(StructureBuilder.levenshtein(raw, "minecraft:polished_blackstone_brick_stairs"));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.p2s;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StructureBuilder#parse} 对不同大小的 VBS JSON 的解析耗时。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"mixed", "set"})
+    public String shape;
+
+    @Param({"1000", "100000", "1000000"})
+    public int voxels;
+
+    private String json;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.bootstrap();
+        json = new Gson().toJson(BenchmarkSupport.script(shape, voxels));
+    }
+
+    @Benchmark
+    public StructureBuilder.VbsScript parse() {
+        return StructureBuilder.parse(json);
+    }
+}
@@ -0,0 +1,56 @@
+package com.p2s;
+
+import net.minecraft.core.BlockPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * fill / frame / set 从脚本编译为 {@link VoxelPlan}，以及通过与世界放置相同的写入流写入内存数组或空跑计数（不需要世界）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RasterizeBenchmark {
+    @Param({"fill", "frame", "set"})
+    public String shape;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int voxels;
+
+    private StructureBuilder.VbsScript script;
+    private VoxelPlan plan;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.bootstrap();
+        script = BenchmarkSupport.script(shape, voxels);
+        plan = StructureBuilder.compile(BlockPos.ZERO, script);
+    }
+
+    @Benchmark
+    public VoxelPlan compile() {
+        return StructureBuilder.compile(BlockPos.ZERO, script);
+    }
+
+    @Benchmark
+    public ArrayBlockSink placeInMemory() {
+        ArrayBlockSink sink = ArrayBlockSink.covering(plan);
+        StructureBuilder.place(plan, sink);
+        return sink;
+    }
+
+    @Benchmark
+    public long placeDryRun() {
+        return StructureBuilder.place(plan, new CountingBlockSink());
+    }
+}
@@ -0,0 +1,95 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 固定包围盒内的内存方块目标：每个位置一个 short 调色板索引（0 表示未写入），不需要世界或服务端。
+ * 落在包围盒外的写入被丢弃并计入 {@link #outside()}。非线程安全。
+ */
+public final class ArrayBlockSink implements BlockSink {
+    private final int minX, minY, minZ;
+    private final int sizeX, sizeY, sizeZ;
+    private final short[] ids;
+    private final List<BlockState> palette = new ArrayList<>();
+    private final Reference2IntOpenHashMap<BlockState> paletteIndex = new Reference2IntOpenHashMap<>();
+    private int pending;
+    private long outside;
+
+    public ArrayBlockSink(int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        long volume = (long) sizeX * sizeY * sizeZ;
+        if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0 || volume > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("无效的尺寸: " + sizeX + "x" + sizeY + "x" + sizeZ);
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.ids = new short[(int) volume];
+        this.palette.add(null);
+        this.paletteIndex.defaultReturnValue(0);
+    }
+
+    /**
+     * 恰好容纳 {@code plan} 包围盒的目标。
+     */
+    public static ArrayBlockSink covering(VoxelPlan plan) {
+        return new ArrayBlockSink(plan.minX(), plan.minY(), plan.minZ(),
+                plan.maxX() - plan.minX() + 1, plan.maxY() - plan.minY() + 1, plan.maxZ() - plan.minZ() + 1);
+    }
+
+    @Override
+    public void add(int x, int y, int z, BlockState state) {
+        int dx = x - minX;
+        int dy = y - minY;
+        int dz = z - minZ;
+        if (dx < 0 || dy < 0 || dz < 0 || dx >= sizeX || dy >= sizeY || dz >= sizeZ) {
+            outside++;
+            return;
+        }
+        ids[(dy * sizeZ + dz) * sizeX + dx] = (short) paletteId(state);
+        pending++;
+    }
+
+    @Override
+    public int flush() {
+        int written = pending;
+        pending = 0;
+        return written;
+    }
+
+    /**
+     * 指定位置的方块，未写入或在包围盒外时返回 null。
+     */
+    public BlockState get(int x, int y, int z) {
+        int dx = x - minX;
+        int dy = y - minY;
+        int dz = z - minZ;
+        if (dx < 0 || dy < 0 || dz < 0 || dx >= sizeX || dy >= sizeY || dz >= sizeZ) {
+            return null;
+        }
+        return palette.get(ids[(dy * sizeZ + dz) * sizeX + dx]);
+    }
+
+    public long outside() {
+        return outside;
+    }
+
+    private int paletteId(BlockState state) {
+        int id = paletteIndex.getInt(state);
+        if (id == 0) {
+            id = palette.size();
+            if (id > Short.MAX_VALUE) {
+                throw new IllegalStateException("调色板过大: " + id);
+            }
+            palette.add(state);
+            paletteIndex.put(state, id);
+        }
+        return id;
+    }
+}
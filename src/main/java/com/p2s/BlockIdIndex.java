@@ -0,0 +1,165 @@
+package com.p2s;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.registry.RegistryEntryAddedCallback;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 方块 id 的模糊匹配索引。完整 id 与 path 按长度分桶，只在启动或注册表变化时构建一次；
+ * 查询从长度最接近的桶开始，用带上界的编辑距离提前剪枝，并随当前最优分数收紧可访问的桶。
+ * 评分规则与原线性扫描一致：min(完整 id 距离, path 距离)，包含子串的候选记为 1，同分取注册顺序靠前者。
+ */
+public final class BlockIdIndex {
+    private static final int MAX_DISTANCE = 6;
+    private static volatile Index INDEX;
+
+    private BlockIdIndex() {
+    }
+
+    public static void register() {
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> rebuild());
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, resourceManager, success) -> rebuild());
+        RegistryEntryAddedCallback.event(BuiltInRegistries.BLOCK).register((rawId, id, block) -> INDEX = null);
+    }
+
+    /**
+     * 丢弃旧索引与解析缓存，并立即重新构建。
+     */
+    public static synchronized void rebuild() {
+        long start = System.nanoTime();
+        INDEX = new Index();
+        StructureBuilder.clearResolvedCache();
+        P2SMod.LOGGER.info("Block id index built: {} ids in {} ms", INDEX.ids.length, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 返回与 {@code raw} 最相近的方块 id，距离超过阈值时返回 null。
+     */
+    public static ResourceLocation nearest(String raw) {
+        if (raw == null || raw.isBlank()) {
+            return null;
+        }
+        Index index = INDEX;
+        if (index == null) {
+            synchronized (BlockIdIndex.class) {
+                if (INDEX == null) {
+                    rebuild();
+                }
+                index = INDEX;
+            }
+        }
+        return index.nearest(raw.toLowerCase());
+    }
+
+    /**
+     * 编辑距离，超过 {@code max} 时提前返回 {@code max + 1}。
+     */
+    static int boundedLevenshtein(String a, String b, int max) {
+        int m = a.length();
+        int n = b.length();
+        if (Math.abs(m - n) > max) {
+            return max + 1;
+        }
+        int[] prev = new int[n + 1];
+        int[] curr = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= m; i++) {
+            curr[0] = i;
+            int rowMin = i;
+            char ca = a.charAt(i - 1);
+            for (int j = 1; j <= n; j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                curr[j] = value;
+                if (value < rowMin) {
+                    rowMin = value;
+                }
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] tmp = prev;
+            prev = curr;
+            curr = tmp;
+        }
+        return prev[n];
+    }
+
+    private static final class Index {
+        private final ResourceLocation[] ids;
+        private final String[] fullIds;
+        // buckets[len] = 该长度的候选字符串及其注册顺序
+        private final String[][] bucketKeys;
+        private final int[][] bucketOrders;
+
+        private Index() {
+            List<ResourceLocation> keys = new ArrayList<>(BuiltInRegistries.BLOCK.keySet());
+            ids = keys.toArray(new ResourceLocation[0]);
+            fullIds = new String[ids.length];
+
+            List<List<String>> keyLists = new ArrayList<>();
+            List<List<Integer>> orderLists = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                fullIds[i] = ids[i].toString().toLowerCase();
+                add(keyLists, orderLists, fullIds[i], i);
+                add(keyLists, orderLists, ids[i].getPath().toLowerCase(), i);
+            }
+            bucketKeys = new String[keyLists.size()][];
+            bucketOrders = new int[keyLists.size()][];
+            for (int len = 0; len < keyLists.size(); len++) {
+                bucketKeys[len] = keyLists.get(len).toArray(new String[0]);
+                bucketOrders[len] = orderLists.get(len).stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        private static void add(List<List<String>> keyLists, List<List<Integer>> orderLists, String key, int order) {
+            while (keyLists.size() <= key.length()) {
+                keyLists.add(new ArrayList<>());
+                orderLists.add(new ArrayList<>());
+            }
+            keyLists.get(key.length()).add(key);
+            orderLists.get(key.length()).add(order);
+        }
+
+        private ResourceLocation nearest(String target) {
+            int bestScore = MAX_DISTANCE + 1;
+            int bestOrder = Integer.MAX_VALUE;
+
+            // 子串命中直接记 1 分，之后只需寻找距离 <= 1 的候选
+            for (int i = 0; i < fullIds.length; i++) {
+                if (fullIds[i].contains(target)) {
+                    bestScore = 1;
+                    bestOrder = i;
+                    break;
+                }
+            }
+
+            // 编辑距离不小于长度差，因此只访问长度差 <= 当前最优分数的桶
+            int len = target.length();
+            for (int delta = 0; delta <= Math.min(bestScore, MAX_DISTANCE); delta++) {
+                for (int sign = 0; sign < (delta == 0 ? 1 : 2); sign++) {
+                    int bucket = sign == 0 ? len + delta : len - delta;
+                    if (bucket < 0 || bucket >= bucketKeys.length) {
+                        continue;
+                    }
+                    String[] candidates = bucketKeys[bucket];
+                    int[] orders = bucketOrders[bucket];
+                    for (int i = 0; i < candidates.length; i++) {
+                        int d = boundedLevenshtein(target, candidates[i], bestScore);
+                        if (d < bestScore || (d == bestScore && orders[i] < bestOrder)) {
+                            bestScore = d;
+                            bestOrder = orders[i];
+                        }
+                    }
+                }
+            }
+            return bestScore <= MAX_DISTANCE ? ids[bestOrder] : null;
+        }
+    }
+}
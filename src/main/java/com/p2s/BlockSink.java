@@ -0,0 +1,26 @@
+package com.p2s;
+
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * 编译结果的写入目标。{@link VoxelPlan.Cursor} 把同一份写入流送给任意实现：
+ * 服务端世界（{@link BulkPlacer}）、内存数组（{@link ArrayBlockSink}）或只计数的空跑（{@link CountingBlockSink}）。
+ */
+public interface BlockSink {
+    /**
+     * 写入一个方块；实现可以先缓存，在 {@link #flush()} 时统一落地。
+     */
+    void add(int x, int y, int z, BlockState state);
+
+    /**
+     * 落地自上次 flush 以来缓存的写入，返回实际写入的方块数。
+     */
+    int flush();
+
+    /**
+     * 因状态未变化等原因被跳过的写入总数。
+     */
+    default long skipped() {
+        return 0;
+    }
+}
@@ -0,0 +1,271 @@
+package com.p2s;
+
+import com.google.gson.Gson;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.ByteArrayTag;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.LongArrayTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.storage.LevelResource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 构建任务的检查点，保存在存档目录的 {@code p2s_jobs/} 下：每个任务一个只写一次的计划文件 {@code <key>.nbt}
+ * 和一个很小的进度文件 {@code <key>.json}（游标位置、暂停状态等）。进度在调度器中定期刷新，
+ * 服务端启动后自动恢复未完成的任务，从记录的游标继续放置而不重新扫描世界。
+ * 所有文件读写在单独的单线程执行器上按提交顺序进行。
+ */
+public final class BuildCheckpoints {
+    static final int INTERVAL_TICKS = 100;
+    private static final Gson GSON = new Gson();
+    private static final ExecutorService IO = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "p2s-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile Path dir;
+
+    private BuildCheckpoints() {
+    }
+
+    public static void register() {
+        ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+            dir = server.getWorldPath(LevelResource.ROOT).resolve("p2s_jobs");
+            resumeAll(server);
+        });
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> dir = null);
+    }
+
+    /**
+     * 新任务入队时调用：写入计划（恢复的任务已有计划文件）与初始进度。
+     */
+    static void track(BuildJob job) {
+        Path root = dir;
+        if (root == null) {
+            return;
+        }
+        Meta meta = Meta.of(job);
+        if (!job.resumed()) {
+            VoxelPlan plan = job.plan();
+            IO.execute(() -> write(root, meta.key + ".nbt", path -> NbtIo.writeCompressed(encode(plan), path)));
+        }
+        IO.execute(() -> writeMeta(root, meta));
+    }
+
+    /**
+     * 记录当前游标与暂停状态；快照在调用线程上取，写入在后台完成。
+     */
+    static void update(BuildJob job) {
+        Path root = dir;
+        if (root != null) {
+            Meta meta = Meta.of(job);
+            IO.execute(() -> writeMeta(root, meta));
+        }
+    }
+
+    /**
+     * 任务完成、失败或取消后删除其检查点。
+     */
+    static void forget(BuildJob job) {
+        Path root = dir;
+        if (root == null) {
+            return;
+        }
+        String key = job.checkpointKey();
+        IO.execute(() -> {
+            try {
+                Files.deleteIfExists(root.resolve(key + ".json"));
+                Files.deleteIfExists(root.resolve(key + ".nbt"));
+            } catch (IOException e) {
+                P2SMod.LOGGER.warn("Delete checkpoint {} failed: {}", key, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 等待已提交的写入完成，用于服务端关闭前。
+     */
+    static void flush() {
+        try {
+            IO.submit(() -> {
+            }).get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            P2SMod.LOGGER.warn("Waiting for build checkpoints failed: {}", e.getMessage());
+        }
+    }
+
+    private static void resumeAll(MinecraftServer server) {
+        Path root = dir;
+        IO.execute(() -> {
+            if (!Files.isDirectory(root)) {
+                return;
+            }
+            List<Meta> metas = new ArrayList<>();
+            List<VoxelPlan> plans = new ArrayList<>();
+            try (Stream<Path> files = Files.list(root)) {
+                for (Path file : files.filter(p -> p.toString().endsWith(".json")).toList()) {
+                    try {
+                        Meta meta = GSON.fromJson(Files.readString(file), Meta.class);
+                        CompoundTag tag = NbtIo.readCompressed(root.resolve(meta.key + ".nbt"), NbtAccounter.unlimitedHeap());
+                        plans.add(decode(tag));
+                        metas.add(meta);
+                    } catch (Exception e) {
+                        P2SMod.LOGGER.warn("Discarding unreadable build checkpoint {}: {}", file.getFileName(), e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                P2SMod.LOGGER.warn("List build checkpoints failed: {}", e.getMessage());
+                return;
+            }
+            if (metas.isEmpty()) {
+                return;
+            }
+            server.execute(() -> {
+                for (int i = 0; i < metas.size(); i++) {
+                    resume(server, metas.get(i), plans.get(i));
+                }
+            });
+        });
+    }
+
+    private static void resume(MinecraftServer server, Meta meta, VoxelPlan plan) {
+        ServerLevel world = server.getLevel(ResourceKey.create(Registries.DIMENSION, ResourceLocation.parse(meta.dimension)));
+        if (world == null) {
+            P2SMod.LOGGER.warn("Cannot resume build {}: dimension {} not loaded", meta.label, meta.dimension);
+            return;
+        }
+        BuildJob job = new BuildJob(meta.label, meta.owner, BuildJob.Priority.valueOf(meta.priority), world, plan,
+                meta.recordUndo, null, null);
+        job.setPlacementMode(PlacementMode.byName(meta.placement, ModConfig.BUILD_PLACEMENT_MODE));
+        job.resumeFrom(meta.key, meta.sectionIndex, meta.voxelIndex);
+        job.setPaused(meta.paused);
+        // 撤销记录不随检查点保存：恢复后的快照只覆盖重启之后放置的部分
+        P2SMod.LOGGER.info("Resuming build {} as #{} at {}%{}{}", meta.label, job.id(), Math.round(job.progress() * 100),
+                meta.paused ? " (paused)" : "", meta.recordUndo ? "; /p2sundo will only revert blocks placed after the restart" : "");
+        BuildScheduler.enqueue(job);
+    }
+
+    private static void writeMeta(Path root, Meta meta) {
+        write(root, meta.key + ".json", path -> Files.writeString(path, GSON.toJson(meta)));
+    }
+
+    /**
+     * 先写临时文件再原子替换，崩溃时不会留下半个文件。
+     */
+    private static void write(Path root, String name, IoAction action) {
+        try {
+            Files.createDirectories(root);
+            Path tmp = root.resolve(name + ".tmp");
+            action.run(tmp);
+            Files.move(tmp, root.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            P2SMod.LOGGER.warn("Write checkpoint {} failed: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * 计划按 section 原样保存：调色板、section 键与每个 section 的 4096 个 short（大端字节）。
+     */
+    static CompoundTag encode(VoxelPlan plan) {
+        CompoundTag tag = new CompoundTag();
+        BlockPos origin = plan.origin();
+        tag.putIntArray("origin", new int[]{origin.getX(), origin.getY(), origin.getZ()});
+        ListTag palette = new ListTag();
+        for (int id = 1; id <= plan.paletteSize(); id++) {
+            palette.add(NbtUtils.writeBlockState(plan.state(id)));
+        }
+        tag.put("palette", palette);
+        long[] keys = new long[plan.sectionCount()];
+        ListTag sections = new ListTag();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = plan.sectionKey(i);
+            ByteBuffer buffer = ByteBuffer.allocate(VoxelPlan.SECTION_VOLUME * 2);
+            buffer.asShortBuffer().put(plan.section(i));
+            sections.add(new ByteArrayTag(buffer.array()));
+        }
+        tag.put("keys", new LongArrayTag(keys));
+        tag.put("sections", sections);
+        return NbtUtils.addCurrentDataVersion(tag);
+    }
+
+    static VoxelPlan decode(CompoundTag tag) {
+        int[] origin = tag.getIntArray("origin");
+        VoxelPlan.Builder builder = new VoxelPlan.Builder(new BlockPos(origin[0], origin[1], origin[2]));
+        ListTag palette = tag.getList("palette", Tag.TAG_COMPOUND);
+        for (int i = 0; i < palette.size(); i++) {
+            int id = builder.paletteId(NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), palette.getCompound(i)));
+            if (id != i + 1) {
+                // 方块在注册表中消失后会被读成空气，与其他条目重复，索引就对不上了
+                throw new IllegalStateException("检查点调色板与当前注册表不一致");
+            }
+        }
+        long[] keys = tag.getLongArray("keys");
+        ListTag sections = tag.getList("sections", Tag.TAG_BYTE_ARRAY);
+        if (sections.size() != keys.length) {
+            throw new IllegalStateException("检查点 section 数量不一致");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            short[] data = new short[VoxelPlan.SECTION_VOLUME];
+            ByteBuffer.wrap(((ByteArrayTag) sections.get(i)).getAsByteArray()).asShortBuffer().get(data);
+            builder.addSection(keys[i], data);
+        }
+        return builder.build();
+    }
+
+    @FunctionalInterface
+    private interface IoAction {
+        void run(Path path) throws IOException;
+    }
+
+    private static final class Meta {
+        String key;
+        String label;
+        String owner;
+        String priority;
+        String dimension;
+        String placement;
+        boolean recordUndo;
+        boolean paused;
+        int sectionIndex;
+        int voxelIndex;
+        long updatedAt;
+
+        static Meta of(BuildJob job) {
+            Meta meta = new Meta();
+            meta.key = job.checkpointKey();
+            meta.label = job.label();
+            meta.owner = job.owner();
+            meta.priority = job.priority().name();
+            meta.dimension = job.world().dimension().location().toString();
+            meta.placement = job.placementMode().name();
+            meta.recordUndo = job.recordsUndo();
+            meta.paused = job.isPaused();
+            meta.sectionIndex = job.sectionIndex();
+            meta.voxelIndex = job.voxelIndex();
+            meta.updatedAt = System.currentTimeMillis();
+            return meta;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+
+/**
+ * 只根据脚本几何计算的构建开销估算：写入数、被世界高度裁掉的写入、涉及的 chunk、包围盒与预计 tick 数。
+ * 不展开任何体素，因此可以在编译前拦截过大的脚本。写入数为每个动作的写入之和，重叠部分在编译时才会合并；
+ * 空心球与空心圆柱按与编译相同的规则只计外壳。极端坐标下的写入数在 {@link Long#MAX_VALUE} 处饱和，不会溢出。
+ */
+public final class BuildEstimate {
+    private long writes;
+    private long clipped;
+    private int actions;
+    private int chunks;
+    private boolean chunksOverflow;
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+    private BuildEstimate() {
+    }
+
+    /**
+     * @param height 用于计算高度裁剪，可为 null（不计算裁剪）
+     */
+    public static BuildEstimate of(BlockPos origin, StructureBuilder.VbsScript script, LevelHeightAccessor height) {
+        if (script == null || script.structure == null) {
+            throw new IllegalArgumentException("结构数据为空");
+        }
+        BuildEstimate estimate = new BuildEstimate();
+        int bottom = height == null ? Integer.MIN_VALUE : height.getMinBuildHeight();
+        int top = height == null ? Integer.MAX_VALUE : height.getMaxBuildHeight() - 1;
+        long chunkCap = Math.max(1, ModConfig.MAX_CHUNKS_PER_BUILD) * 4L;
+        LongOpenHashSet chunkSet = new LongOpenHashSet();
+
+        for (StructureBuilder.VbsLayer layer : script.structure) {
+            if (layer == null || layer.actions == null) {
+                continue;
+            }
+            for (StructureBuilder.VbsAction action : layer.actions) {
+                if (action == null || action.type == null) {
+                    continue;
+                }
+                switch (action.type.toLowerCase()) {
+                    case "fill", "frame" -> {
+                        if (action.from == null || action.to == null) {
+                            continue;
+                        }
+                        int x0 = origin.getX() + Math.min(action.from[0], action.to[0]);
+                        int y0 = origin.getY() + Math.min(action.from[1], action.to[1]);
+                        int z0 = origin.getZ() + Math.min(action.from[2], action.to[2]);
+                        int x1 = origin.getX() + Math.max(action.from[0], action.to[0]);
+                        int y1 = origin.getY() + Math.max(action.from[1], action.to[1]);
+                        int z1 = origin.getZ() + Math.max(action.from[2], action.to[2]);
+                        boolean hollow = action.type.equalsIgnoreCase("frame");
+                        long total = boxWrites(x0, y0, z0, x1, y1, z1, hollow, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                        long inside = boxWrites(x0, y0, z0, x1, y1, z1, hollow, bottom, top);
+                        estimate.addWrites(total);
+                        estimate.clipped += total - inside;
+                        estimate.include(x0, y0, z0);
+                        estimate.include(x1, y1, z1);
+                        estimate.addChunks(chunkSet, x0, z0, x1, z1, chunkCap);
+                    }
+                    case "set" -> {
+                        int[] at = action.at;
+                        if (at == null) {
+                            continue;
+                        }
+                        for (int i = 0; i + 2 < at.length; i += 3) {
+                            int x = origin.getX() + at[i];
+                            int y = origin.getY() + at[i + 1];
+                            int z = origin.getZ() + at[i + 2];
+                            estimate.writes++;
+                            if (y < bottom || y > top) {
+                                estimate.clipped++;
+                            }
+                            estimate.include(x, y, z);
+                            estimate.addChunks(chunkSet, x, z, x, z, chunkCap);
+                        }
+                    }
+                    case "line" -> {
+                        if (action.from == null || action.to == null) {
+                            continue;
+                        }
+                        estimate.addLine(chunkSet, chunkCap, bottom, top,
+                                origin.getX() + action.from[0], origin.getY() + action.from[1], origin.getZ() + action.from[2],
+                                origin.getX() + action.to[0], origin.getY() + action.to[1], origin.getZ() + action.to[2]);
+                    }
+                    case "sphere" -> {
+                        if (action.center == null || action.radius < 0) {
+                            continue;
+                        }
+                        estimate.addSphere(chunkSet, chunkCap, bottom, top, origin.getX() + action.center[0],
+                                origin.getY() + action.center[1], origin.getZ() + action.center[2], action.radius, action.hollow, action.half);
+                    }
+                    case "cylinder" -> {
+                        if (action.center == null || action.radius < 0) {
+                            continue;
+                        }
+                        estimate.addCylinder(chunkSet, chunkCap, bottom, top, origin.getX() + action.center[0],
+                                origin.getY() + action.center[1], origin.getZ() + action.center[2],
+                                action.radius, Math.max(1, action.height), action.axis, action.hollow);
+                    }
+                    case "replace" -> {
+                        // 只改写计划中已有的方块，不增加写入数，但区域仍计入包围盒与 chunk
+                        if (action.from == null || action.to == null) {
+                            continue;
+                        }
+                        int x0 = origin.getX() + Math.min(action.from[0], action.to[0]);
+                        int z0 = origin.getZ() + Math.min(action.from[2], action.to[2]);
+                        int x1 = origin.getX() + Math.max(action.from[0], action.to[0]);
+                        int z1 = origin.getZ() + Math.max(action.from[2], action.to[2]);
+                        estimate.include(x0, origin.getY() + Math.min(action.from[1], action.to[1]), z0);
+                        estimate.include(x1, origin.getY() + Math.max(action.from[1], action.to[1]), z1);
+                        estimate.addChunks(chunkSet, x0, z0, x1, z1, chunkCap);
+                    }
+                    default -> {
+                        continue;
+                    }
+                }
+                estimate.actions++;
+            }
+        }
+        estimate.chunks = chunkSet.size();
+        return estimate;
+    }
+
+    /**
+     * 盒体在 [bottom, top] 高度范围内的写入数；frame 只计外壳。
+     */
+    private static long boxWrites(int x0, int y0, int z0, int x1, int y1, int z1, boolean hollow, int bottom, int top) {
+        long dx = (long) x1 - x0 + 1;
+        long dz = (long) z1 - z0 + 1;
+        long lo = Math.max(y0, bottom);
+        long hi = Math.min(y1, top);
+        if (lo > hi) {
+            return 0;
+        }
+        long levels = hi - lo + 1;
+        long full = product(dx, dz);
+        if (!hollow) {
+            return product(full, levels);
+        }
+        // 顶层和底层是完整的面，中间层只有四周一圈
+        long caps = (lo == y0 ? 1 : 0) + (hi == y1 && y1 != y0 ? 1 : 0);
+        long ring = full == Long.MAX_VALUE ? full : full - Math.max(0, dx - 2) * Math.max(0, dz - 2);
+        return sum(product(caps, full), product(levels - caps, ring));
+    }
+
+    /**
+     * 非负数相乘，溢出时饱和为 {@link Long#MAX_VALUE}。
+     */
+    private static long product(long a, long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static long sum(long a, long b) {
+        return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+    }
+
+    private void addWrites(long count) {
+        writes = sum(writes, count);
+    }
+
+    private void addLine(LongOpenHashSet chunkSet, long chunkCap, int bottom, int top,
+                         int x0, int y0, int z0, int x1, int y1, int z1) {
+        long dx = (long) x1 - x0;
+        long dy = (long) y1 - y0;
+        long dz = (long) z1 - z0;
+        long n = Math.max(Math.abs(dx), Math.max(Math.abs(dy), Math.abs(dz)));
+        addWrites(n + 1);
+        include(x0, y0, z0);
+        include(x1, y1, z1);
+        if (n > ModConfig.MAX_BUILD_SPAN) {
+            // 已经超出跨度限制，只按包围盒粗算 chunk
+            addChunks(chunkSet, Math.min(x0, x1), Math.min(z0, z1), Math.max(x0, x1), Math.max(z0, z1), chunkCap);
+            return;
+        }
+        for (long i = 0; i <= n; i++) {
+            int x = n == 0 ? x0 : (int) (x0 + Math.floorDiv(2 * dx * i + n, 2 * n));
+            int y = n == 0 ? y0 : (int) (y0 + Math.floorDiv(2 * dy * i + n, 2 * n));
+            int z = n == 0 ? z0 : (int) (z0 + Math.floorDiv(2 * dz * i + n, 2 * n));
+            if (y < bottom || y > top) {
+                clipped++;
+            }
+            addChunks(chunkSet, x, z, x, z, chunkCap);
+        }
+    }
+
+    /**
+     * 按列累加球内的格数，不展开体素。hollow 时减去每列的内部段：六个相邻格都在球内的格子，
+     * 即 |dy| 不超过本列半高减一与四个相邻列半高中的最小值。
+     */
+    private void addSphere(LongOpenHashSet chunkSet, long chunkCap, int bottom, int top,
+                           int cx, int cy, int cz, int radius, boolean hollow, String half) {
+        boolean upper = "upper".equalsIgnoreCase(half) || "top".equalsIgnoreCase(half);
+        boolean lower = "lower".equalsIgnoreCase(half) || "bottom".equalsIgnoreCase(half);
+        int minYOff = upper ? 0 : -radius;
+        int maxYOff = lower ? 0 : radius;
+        include(cx - radius, cy + minYOff, cz - radius);
+        include(cx + radius, cy + maxYOff, cz + radius);
+        addChunks(chunkSet, cx - radius, cz - radius, cx + radius, cz + radius, chunkCap);
+        if (radius > ModConfig.MAX_BUILD_SPAN) {
+            // 已经超出跨度限制，按外接立方体粗算
+            long d = 2L * radius + 1;
+            addWrites(product(product(d, d), d));
+            return;
+        }
+        for (int dx = -radius; dx <= radius; dx++) {
+            for (int dz = -radius; dz <= radius; dz++) {
+                int h = Voxelizer.sphereHalfHeight(dx, dz, radius);
+                if (h < 0) {
+                    continue;
+                }
+                long lo = cy + (upper ? 0 : -h);
+                long hi = cy + (lower ? 0 : h);
+                long cells = hi - lo + 1;
+                long inside = overlap(lo, hi, bottom, top);
+                if (hollow) {
+                    int m = Math.min(h - 1, Math.min(
+                            Math.min(Voxelizer.sphereHalfHeight(dx + 1, dz, radius), Voxelizer.sphereHalfHeight(dx - 1, dz, radius)),
+                            Math.min(Voxelizer.sphereHalfHeight(dx, dz + 1, radius), Voxelizer.sphereHalfHeight(dx, dz - 1, radius))));
+                    if (m >= 0) {
+                        long innerLo = Math.max(lo, (long) cy - m);
+                        long innerHi = Math.min(hi, (long) cy + m);
+                        cells -= innerHi - innerLo + 1;
+                        inside -= overlap(innerLo, innerHi, bottom, top);
+                    }
+                }
+                writes += cells;
+                clipped += cells - inside;
+            }
+        }
+    }
+
+    private static long overlap(long lo, long hi, int bottom, int top) {
+        return Math.max(0, Math.min(hi, top) - Math.max(lo, bottom) + 1);
+    }
+
+    /**
+     * 圆面格数乘以长度，hollow 时只计圆环（四邻不全在圆内的格子，两端不封口）；沿 x/z 轴时逐行计算高度裁剪。
+     */
+    private void addCylinder(LongOpenHashSet chunkSet, long chunkCap, int bottom, int top,
+                             int cx, int cy, int cz, int radius, int length, String axisName, boolean hollow) {
+        String axis = axisName == null ? "y" : axisName.toLowerCase();
+        int len = length - 1;
+        int x0 = cx - (axis.equals("x") ? 0 : radius);
+        int x1 = cx + (axis.equals("x") ? len : radius);
+        int z0 = cz - (axis.equals("z") ? 0 : radius);
+        int z1 = cz + (axis.equals("z") ? len : radius);
+        boolean vertical = !axis.equals("x") && !axis.equals("z");
+        int y0 = cy - (vertical ? 0 : radius);
+        int y1 = cy + (vertical ? len : radius);
+        include(x0, y0, z0);
+        include(x1, y1, z1);
+        addChunks(chunkSet, x0, z0, x1, z1, chunkCap);
+        if (radius > ModConfig.MAX_BUILD_SPAN) {
+            // 已经超出跨度限制，按外接长方体粗算
+            long d = 2L * radius + 1;
+            addWrites(product(product(d, d), length));
+            return;
+        }
+        for (int du = -radius; du <= radius; du++) {
+            long row = 0;
+            for (int dv = -radius; dv <= radius; dv++) {
+                if (!Voxelizer.inDisk(du, dv, radius)) {
+                    continue;
+                }
+                if (hollow && Voxelizer.inDisk(du + 1, dv, radius) && Voxelizer.inDisk(du - 1, dv, radius)
+                        && Voxelizer.inDisk(du, dv + 1, radius) && Voxelizer.inDisk(du, dv - 1, radius)) {
+                    continue;
+                }
+                row++;
+            }
+            writes += row * length;
+            if (vertical) {
+                long inside = Math.max(0, Math.min((long) y1, top) - Math.max((long) y0, bottom) + 1);
+                clipped += row * (length - inside);
+            } else {
+                // 圆面（含圆环）关于两维对称，du 可直接当作 y 偏移
+                long y = (long) cy + du;
+                if (y < bottom || y > top) {
+                    clipped += row * length;
+                }
+            }
+        }
+    }
+
+    private void include(int x, int y, int z) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        minZ = Math.min(minZ, z);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+        maxZ = Math.max(maxZ, z);
+    }
+
+    private void addChunks(LongOpenHashSet chunkSet, int x0, int z0, int x1, int z1, long cap) {
+        if (chunksOverflow) {
+            return;
+        }
+        int cx0 = x0 >> 4;
+        int cz0 = z0 >> 4;
+        int cx1 = x1 >> 4;
+        int cz1 = z1 >> 4;
+        if (((long) cx1 - cx0 + 1) * ((long) cz1 - cz0 + 1) + chunkSet.size() > cap) {
+            chunksOverflow = true;
+            return;
+        }
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cz = cz0; cz <= cz1; cz++) {
+                chunkSet.add(ChunkPos.asLong(cx, cz));
+            }
+        }
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    public long clipped() {
+        return clipped;
+    }
+
+    public int chunks() {
+        return chunks;
+    }
+
+    public boolean chunksOverflow() {
+        return chunksOverflow;
+    }
+
+    public long estimatedTicks() {
+        long placeable = writes - clipped;
+        long perTick = Math.max(1, ModConfig.BUILD_BLOCKS_PER_TICK);
+        return placeable / perTick + (placeable % perTick == 0 ? 0 : 1);
+    }
+
+    public long spanX() {
+        return writes == 0 ? 0 : (long) maxX - minX + 1;
+    }
+
+    public long spanY() {
+        return writes == 0 ? 0 : (long) maxY - minY + 1;
+    }
+
+    public long spanZ() {
+        return writes == 0 ? 0 : (long) maxZ - minZ + 1;
+    }
+
+    /**
+     * 返回第一条违反的限制，全部满足时返回 null。
+     */
+    public String limitViolation() {
+        if (writes > ModConfig.MAX_BLOCKS_PER_BUILD) {
+            return "too many blocks: " + writes + " > " + ModConfig.MAX_BLOCKS_PER_BUILD;
+        }
+        long span = Math.max(spanX(), Math.max(spanY(), spanZ()));
+        if (span > ModConfig.MAX_BUILD_SPAN) {
+            return "structure too large: span " + span + " > " + ModConfig.MAX_BUILD_SPAN;
+        }
+        if (chunksOverflow) {
+            return "touches more than " + ModConfig.MAX_CHUNKS_PER_BUILD + " chunks";
+        }
+        if (chunks > ModConfig.MAX_CHUNKS_PER_BUILD) {
+            return "touches too many chunks: " + chunks + " > " + ModConfig.MAX_CHUNKS_PER_BUILD;
+        }
+        return null;
+    }
+
+    public void requireWithinLimits() {
+        String violation = limitViolation();
+        if (violation != null) {
+            throw new IllegalArgumentException("构建超出限制: " + violation);
+        }
+    }
+
+    /**
+     * 对已经展开的计划检查同样的限制（方块数、包围盒跨度、涉及的 chunk），用于不经过脚本估算的来源，
+     * 例如从模板缓存还原、带旋转或换了放置点的计划。
+     */
+    public static void requireWithinLimits(VoxelPlan plan) {
+        if (plan.blockCount() > ModConfig.MAX_BLOCKS_PER_BUILD) {
+            throw new IllegalArgumentException("构建超出限制: too many blocks: " + plan.blockCount() + " > " + ModConfig.MAX_BLOCKS_PER_BUILD);
+        }
+        long span = plan.isEmpty() ? 0 : Math.max((long) plan.maxX() - plan.minX(),
+                Math.max((long) plan.maxY() - plan.minY(), (long) plan.maxZ() - plan.minZ())) + 1;
+        if (span > ModConfig.MAX_BUILD_SPAN) {
+            throw new IllegalArgumentException("构建超出限制: structure too large: span " + span + " > " + ModConfig.MAX_BUILD_SPAN);
+        }
+        LongOpenHashSet chunkSet = new LongOpenHashSet();
+        for (int i = 0; i < plan.sectionCount(); i++) {
+            long key = plan.sectionKey(i);
+            chunkSet.add(ChunkPos.asLong(SectionPos.x(key), SectionPos.z(key)));
+        }
+        if (chunkSet.size() > ModConfig.MAX_CHUNKS_PER_BUILD) {
+            throw new IllegalArgumentException("构建超出限制: touches too many chunks: " + chunkSet.size()
+                    + " > " + ModConfig.MAX_CHUNKS_PER_BUILD);
+        }
+    }
+
+    public String describe() {
+        return String.format("%d writes (%d clipped by world height), %s chunks, %dx%dx%d, %d action(s), ~%d tick(s)",
+                writes, clipped, chunksOverflow ? ">" + ModConfig.MAX_CHUNKS_PER_BUILD : String.valueOf(chunks),
+                spanX(), spanY(), spanZ(), actions, estimatedTicks());
+    }
+}
@@ -0,0 +1,346 @@
+package com.p2s;
+
+import net.minecraft.server.level.ServerLevel;
+
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 一个正在分 tick 放置的结构。由 {@link BuildScheduler} 在服务端主线程上推进。
+ * 进度完全由计划游标 (sectionIndex, voxelIndex) 决定，{@link BuildCheckpoints} 据此在重启后继续。
+ * {@link PlacementMode#SETTLE} 模式下写入结束后还有一个整理阶段，整理完成才算结束。
+ * 运行期间为计划涉及的 chunk 持有 {@link ChunkTickets}，未加载的 chunk 在后台加载，写入等其就绪后再落地。
+ */
+public final class BuildJob {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    /**
+     * 排队优先级，数值小的先启动。
+     */
+    public enum Priority {
+        /** 存档加载与撤销：结果已知，通常较快。 */
+        LOAD,
+        /** 新生成的结构。 */
+        GENERATE
+    }
+
+    private final int id = NEXT_ID.getAndIncrement();
+    private final String label;
+    private final String owner;
+    private final Priority priority;
+    private final VoxelPlan plan;
+    private final ServerLevel world;
+    private final BulkPlacer placer;
+    private final VoxelPlan.Cursor cursor;
+    private final VoxelPlan.Builder previous;
+    // 撤销记录是否由本任务保存；共用记录时由调用方在全部任务结束后统一保存
+    private final boolean ownsUndo;
+    private final Consumer<BuildJob> onComplete;
+    private final Consumer<Exception> onFailure;
+    private final long startedAt = System.currentTimeMillis();
+    private String checkpointKey = UUID.randomUUID().toString();
+    private boolean resumed;
+    private boolean paused;
+    private PlacementMode placementMode;
+    private SettlePass settle;
+    private ChunkTickets tickets;
+    // 之前的写入已全部落地的游标位置；还有写入在等 chunk 加载时游标会超前，检查点只能记录这里
+    private int safeSection;
+    private int safeVoxel;
+    private long nanosPerBlock;
+    private long fed;
+    private long placed;
+    private int ticks;
+    private boolean done;
+    // 上一次 step 只在等待 chunk 加载（重试缓存的写入），调度器本 tick 内不再推进它
+    private boolean waiting;
+
+    /**
+     * @param owner      发起者名称，用于每人并发上限与 /p2squeue 显示
+     * @param recordUndo 是否记录被覆盖的方块以便 /p2sundo；撤销任务本身不记录
+     */
+    public BuildJob(String label, String owner, Priority priority, ServerLevel world, VoxelPlan plan, boolean recordUndo,
+                    Consumer<BuildJob> onComplete, Consumer<Exception> onFailure) {
+        this(label, owner, priority, world, plan, recordUndo ? new VoxelPlan.Builder(plan.origin()) : null, true,
+                onComplete, onFailure);
+    }
+
+    /**
+     * 把被覆盖的方块记录到调用方提供的 {@code sharedUndo}，本任务结束时不单独保存快照。
+     * 用于由多个任务组成的一次构建（流式分层），整次构建只产生一个撤销快照。
+     */
+    BuildJob(String label, String owner, Priority priority, ServerLevel world, VoxelPlan plan, VoxelPlan.Builder sharedUndo,
+             Consumer<BuildJob> onComplete, Consumer<Exception> onFailure) {
+        this(label, owner, priority, world, plan, sharedUndo, false, onComplete, onFailure);
+    }
+
+    private BuildJob(String label, String owner, Priority priority, ServerLevel world, VoxelPlan plan, VoxelPlan.Builder previous,
+                     boolean ownsUndo, Consumer<BuildJob> onComplete, Consumer<Exception> onFailure) {
+        this.label = label;
+        this.owner = owner;
+        this.priority = priority;
+        this.world = world;
+        this.placer = new BulkPlacer(world, ModConfig.BUILD_SKIP_UNCHANGED);
+        this.previous = previous;
+        this.ownsUndo = ownsUndo;
+        this.placer.recordPrevious(previous);
+        this.placer.setDeferUnloaded(true);
+        setPlacementMode(ModConfig.BUILD_PLACEMENT_MODE);
+        this.plan = plan;
+        this.cursor = new VoxelPlan.Cursor(plan);
+        this.onComplete = onComplete;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * 在不超过 {@code maxBlocks} 个方块且预计不超过 {@code deadlineNanos} 的前提下继续放置，返回本次放置数量。
+     * 实际写入在 flush 时集中发生，因此按历史的每方块耗时预估本次可放置的数量。
+     */
+    int step(int maxBlocks, long deadlineNanos) {
+        ticks++;
+        waiting = false;
+        if (tickets == null) {
+            tickets = ChunkTickets.forPlan(world, plan);
+        }
+        if (cursor.isDone() || placer.buffered() >= maxBlocks * 4L) {
+            if (placer.hasPending()) {
+                // 等待 chunk 加载：只重试已缓存的写入，返回实际落地的数量；仍有写入在等时标记 waiting，
+                // 由调度器在本 tick 内跳过，不占用其他任务的预算
+                int flushed = placer.flush();
+                placed += flushed;
+                markSafe();
+                waiting = placer.hasPending();
+                return flushed;
+            }
+            return settle(maxBlocks, deadlineNanos);
+        }
+        long start = System.nanoTime();
+        int limit = maxBlocks;
+        if (nanosPerBlock > 0) {
+            limit = (int) Math.max(1, Math.min(maxBlocks, (deadlineNanos - start) / nanosPerBlock));
+        }
+
+        int count = cursor.feed(placer, limit);
+        fed += count;
+        placed += placer.flush();
+        markSafe();
+        done = cursor.isDone() && !placer.hasPending() && placementMode != PlacementMode.SETTLE;
+
+        if (count > 0) {
+            long sample = (System.nanoTime() - start) / count;
+            nanosPerBlock = nanosPerBlock == 0 ? sample : (nanosPerBlock * 3 + sample) / 4;
+        }
+        return count;
+    }
+
+    private void markSafe() {
+        if (!placer.hasPending()) {
+            safeSection = cursor.sectionIndex();
+            safeVoxel = cursor.voxelIndex();
+        }
+    }
+
+    /**
+     * 整理阶段：返回消耗的预算。整理中途切换到其他模式会直接结束。
+     */
+    private int settle(int budget, long deadlineNanos) {
+        if (placementMode != PlacementMode.SETTLE) {
+            done = true;
+            return 0;
+        }
+        if (settle == null) {
+            settle = new SettlePass(world, plan);
+        }
+        int used = settle.step(budget, deadlineNanos);
+        done = settle.isDone();
+        return used;
+    }
+
+    /**
+     * 从检查点恢复：沿用原检查点文件，并把游标移到记录的位置。
+     * 撤销记录不在检查点中，恢复后只记录此后的写入，重启前已放置的部分无法通过 /p2sundo 撤销。
+     */
+    void resumeFrom(String checkpointKey, int sectionIndex, int voxelIndex) {
+        this.checkpointKey = checkpointKey;
+        this.resumed = true;
+        this.fed = cursor.seek(sectionIndex, voxelIndex);
+        this.safeSection = cursor.sectionIndex();
+        this.safeVoxel = cursor.voxelIndex();
+    }
+
+    /**
+     * 停止任务，已放置的方块保留（可用 /p2sundo 撤销）。
+     */
+    void cancel() {
+        done = true;
+        P2SMod.LOGGER.info("Build job #{} ({}) cancelled after {} blocks", id, label, placed);
+        releaseChunks();
+        storeUndo();
+        if (onFailure != null) {
+            onFailure.accept(new CancellationException("Build #" + id + " cancelled"));
+        }
+    }
+
+    void complete() {
+        P2SMod.LOGGER.info("Build job #{} ({}, {}) finished: {} blocks written, {} unchanged skipped, {} settled, {} ticks, {} ms",
+                id, label, placementMode.id(), placed, placer.skipped(), settled(), ticks, System.currentTimeMillis() - startedAt);
+        releaseChunks();
+        storeUndo();
+        if (onComplete != null) {
+            onComplete.accept(this);
+        }
+    }
+
+    void fail(Exception e) {
+        done = true;
+        P2SMod.LOGGER.error("Build job #{} ({}) failed", id, label, e);
+        releaseChunks();
+        storeUndo();
+        if (onFailure != null) {
+            onFailure.accept(e);
+        }
+    }
+
+    /**
+     * 释放 chunk 票据；任务再次推进时会重新加票。
+     */
+    void releaseChunks() {
+        if (tickets != null) {
+            tickets.release();
+            tickets = null;
+        }
+    }
+
+    private void storeUndo() {
+        if (previous == null || !ownsUndo) {
+            return;
+        }
+        // 恢复的任务只记录了重启之后的写入，在标签上注明，/p2sundo 的反馈会带上它
+        String snapshotLabel = resumed ? label + " (after restart)" : label;
+        // 压缩快照不需要访问世界，放到工作线程
+        CompletableFuture.supplyAsync(() -> new UndoHistory.Snapshot(id, snapshotLabel, world.dimension(), previous.build()),
+                        StructureBuilder.compileExecutor())
+                .thenAccept(UndoHistory::push)
+                .exceptionally(ex -> {
+                    P2SMod.LOGGER.warn("Failed to store undo snapshot for build #{}: {}", id, ex.getMessage());
+                    return null;
+                });
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    public String checkpointKey() {
+        return checkpointKey;
+    }
+
+    /**
+     * 是否由检查点恢复（计划文件已存在）。
+     */
+    public boolean resumed() {
+        return resumed;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    void setPaused(boolean paused) {
+        this.paused = paused;
+        if (paused) {
+            releaseChunks();
+        }
+    }
+
+    public PlacementMode placementMode() {
+        return placementMode;
+    }
+
+    /**
+     * 修改写入方式，对尚未写入的部分生效；整理阶段只在写入结束时的模式为 SETTLE 时进行。
+     */
+    void setPlacementMode(PlacementMode placementMode) {
+        this.placementMode = placementMode;
+        placer.setNeighborUpdates(placementMode == PlacementMode.VANILLA);
+    }
+
+    /**
+     * 是否已写完、正在整理。
+     */
+    public boolean isSettling() {
+        return settle != null && !done;
+    }
+
+    public int settled() {
+        return settle == null ? 0 : settle.settled();
+    }
+
+    public ServerLevel world() {
+        return world;
+    }
+
+    public boolean recordsUndo() {
+        return previous != null;
+    }
+
+    /**
+     * 可安全恢复的游标位置（之前的写入都已落地）。
+     */
+    public int sectionIndex() {
+        return safeSection;
+    }
+
+    public int voxelIndex() {
+        return safeVoxel;
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    public Priority priority() {
+        return priority;
+    }
+
+    /**
+     * 已送出的写入占计划的比例，0..1。
+     */
+    public double progress() {
+        return plan.blockCount() == 0 ? 1.0 : (double) fed / plan.blockCount();
+    }
+
+    public VoxelPlan plan() {
+        return plan;
+    }
+
+    public long placed() {
+        return placed;
+    }
+
+    public long skipped() {
+        return placer.skipped();
+    }
+
+    public int ticks() {
+        return ticks;
+    }
+
+    /**
+     * 上一次推进时是否仍在等待 chunk 加载。
+     */
+    public boolean waiting() {
+        return waiting;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+}
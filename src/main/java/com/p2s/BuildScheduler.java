@@ -0,0 +1,242 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.MinecraftServer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 在服务端 tick 末尾按预算推进 {@link BuildJob}，避免一次性放置大结构卡住主线程。
+ * 新任务按优先级（加载先于生成）、同优先级按先后排队；受全局与每人并发上限约束的活动任务
+ * 共享同一份每 tick 预算，轮流各推进一片，因此多个构建交错进行而不是一个接一个。
+ * 任务进度定期写入 {@link BuildCheckpoints}，服务端关闭时保存全部未完成任务，下次启动后继续。
+ * 所有方法只能在服务端主线程调用。
+ */
+public final class BuildScheduler {
+    // 每次轮到一个任务时至少推进的方块数，避免活动任务很多时每片太小、flush 过于频繁
+    private static final int MIN_SLICE = 1024;
+    private static final List<BuildJob> PENDING = new ArrayList<>();
+    private static final List<BuildJob> ACTIVE = new ArrayList<>();
+    private static int nextTurn;
+    private static int ticksSinceCheckpoint;
+
+    private BuildScheduler() {
+    }
+
+    public static void register() {
+        ServerTickEvents.END_SERVER_TICK.register(BuildScheduler::tick);
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+            if (pending() > 0) {
+                ACTIVE.forEach(BuildCheckpoints::update);
+                PENDING.forEach(BuildCheckpoints::update);
+                BuildCheckpoints.flush();
+                P2SMod.LOGGER.info("Server stopping, checkpointed {} unfinished build job(s) for resume", pending());
+                PENDING.clear();
+                ACTIVE.clear();
+            }
+        });
+    }
+
+    public static void enqueue(BuildJob job) {
+        int index = PENDING.size();
+        while (index > 0 && PENDING.get(index - 1).priority().ordinal() > job.priority().ordinal()) {
+            index--;
+        }
+        PENDING.add(index, job);
+        BuildCheckpoints.track(job);
+        P2SMod.LOGGER.info("Build job #{} ({}, {} by {}) queued, {} job(s) pending",
+                job.id(), job.label(), job.priority(), job.owner(), pending());
+    }
+
+    /**
+     * 活动与等待中的任务总数。
+     */
+    public static int pending() {
+        return PENDING.size() + ACTIVE.size();
+    }
+
+    public static List<BuildJob> active() {
+        return List.copyOf(ACTIVE);
+    }
+
+    public static List<BuildJob> waiting() {
+        return List.copyOf(PENDING);
+    }
+
+    /**
+     * 把等待中的任务移到队首或队尾（忽略优先级），找不到时返回 false。
+     */
+    public static boolean move(int id, boolean toFront) {
+        for (int i = 0; i < PENDING.size(); i++) {
+            BuildJob job = PENDING.get(i);
+            if (job.id() == id) {
+                PENDING.remove(i);
+                PENDING.add(toFront ? 0 : PENDING.size(), job);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 暂停任务：活动任务回到等待队首并让出名额，游标保持不变。找不到或已暂停时返回 false。
+     */
+    public static boolean pause(int id) {
+        BuildJob job = find(ACTIVE, id);
+        if (job != null) {
+            removeActive(job);
+            PENDING.add(0, job);
+        } else {
+            job = find(PENDING, id);
+            if (job == null || job.isPaused()) {
+                return false;
+            }
+        }
+        job.setPaused(true);
+        BuildCheckpoints.update(job);
+        return true;
+    }
+
+    public static boolean resume(int id) {
+        BuildJob job = find(PENDING, id);
+        if (job == null || !job.isPaused()) {
+            return false;
+        }
+        job.setPaused(false);
+        BuildCheckpoints.update(job);
+        return true;
+    }
+
+    /**
+     * 取消活动或等待中的任务；已放置的部分保留并可撤销。
+     */
+    public static boolean cancel(int id) {
+        BuildJob job = find(ACTIVE, id);
+        if (job != null) {
+            removeActive(job);
+        } else {
+            job = find(PENDING, id);
+            if (job == null) {
+                return false;
+            }
+            PENDING.remove(job);
+        }
+        BuildCheckpoints.forget(job);
+        job.cancel();
+        return true;
+    }
+
+    /**
+     * 从活动列表移除任务；移除位置在下一个轮次之前时轮次随之前移，不跳过紧随其后的任务。
+     */
+    private static void removeActive(BuildJob job) {
+        int index = ACTIVE.indexOf(job);
+        ACTIVE.remove(index);
+        if (index < nextTurn) {
+            nextTurn--;
+        }
+    }
+
+    /**
+     * 修改活动或等待中任务的写入方式，找不到时返回 false。
+     */
+    public static boolean setPlacementMode(int id, PlacementMode mode) {
+        BuildJob job = find(ACTIVE, id);
+        if (job == null) {
+            job = find(PENDING, id);
+        }
+        if (job == null) {
+            return false;
+        }
+        job.setPlacementMode(mode);
+        BuildCheckpoints.update(job);
+        return true;
+    }
+
+    private static BuildJob find(List<BuildJob> jobs, int id) {
+        for (BuildJob job : jobs) {
+            if (job.id() == id) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private static void promote() {
+        Iterator<BuildJob> it = PENDING.iterator();
+        while (it.hasNext() && ACTIVE.size() < Math.max(1, ModConfig.BUILD_MAX_ACTIVE)) {
+            BuildJob job = it.next();
+            if (job.isPaused() || activeFor(job.owner()) >= Math.max(1, ModConfig.BUILD_MAX_ACTIVE_PER_PLAYER)) {
+                continue;
+            }
+            it.remove();
+            ACTIVE.add(job);
+            P2SMod.LOGGER.info("Build job #{} ({}) started, {} active", job.id(), job.label(), ACTIVE.size());
+        }
+    }
+
+    private static int activeFor(String owner) {
+        int count = 0;
+        for (BuildJob job : ACTIVE) {
+            if (job.owner().equals(owner)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void tick(MinecraftServer server) {
+        promote();
+        if (ACTIVE.isEmpty()) {
+            return;
+        }
+        if (++ticksSinceCheckpoint >= BuildCheckpoints.INTERVAL_TICKS) {
+            ticksSinceCheckpoint = 0;
+            ACTIVE.forEach(BuildCheckpoints::update);
+        }
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.BUILD_TICK)) {
+            long deadline = System.nanoTime() + ModConfig.BUILD_MILLIS_PER_TICK * 1_000_000L;
+            int budget = ModConfig.BUILD_BLOCKS_PER_TICK;
+            int share = Math.max(MIN_SLICE, budget / ACTIVE.size());
+            int placed = 0;
+            // 本 tick 内在等待 chunk 加载的任务：不再推进，全部活动任务都在等待时提前结束
+            Set<BuildJob> stalled = new ReferenceOpenHashSet<>();
+            while (budget > 0 && stalled.size() < ACTIVE.size() && System.nanoTime() < deadline) {
+                if (nextTurn >= ACTIVE.size()) {
+                    nextTurn = 0;
+                }
+                BuildJob job = ACTIVE.get(nextTurn);
+                if (stalled.contains(job)) {
+                    nextTurn++;
+                    continue;
+                }
+                try {
+                    int count = job.step(Math.min(share, budget), deadline);
+                    budget -= count;
+                    placed += count;
+                    if (job.waiting()) {
+                        stalled.add(job);
+                    }
+                } catch (Exception e) {
+                    ACTIVE.remove(nextTurn);
+                    BuildCheckpoints.forget(job);
+                    job.fail(e);
+                    continue;
+                }
+                if (job.isDone()) {
+                    ACTIVE.remove(nextTurn);
+                    BuildCheckpoints.forget(job);
+                    job.complete();
+                } else {
+                    nextTurn++;
+                }
+            }
+            timer.units(placed);
+        }
+    }
+}
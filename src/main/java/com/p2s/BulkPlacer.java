@@ -0,0 +1,278 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.level.ThreadedLevelLightEngine;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.lighting.LightEngine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 批量方块写入：先按 chunk / section 缓存写入，flush 时直接写 {@link LevelChunkSection} 的调色板，
+ * 每个 chunk 只重算一次高度图、只提交一次光照检查并只向客户端重发一次区块。
+ * 不触发邻居更新与 onPlace 回调；带方块实体的方块仍走原版 setBlock 以正确创建/移除 BlockEntity。
+ * 开启差异模式时，直接从 section 调色板读取现有状态，与目标一致的位置不写入，
+ * 没有任何实际写入的 chunk 也不会重算高度图或重发。
+ * 开启延迟模式时只写已加载的 chunk，未加载 chunk 的写入留在缓存中等下次 flush，不在主线程同步加载。
+ * 开启邻居更新（{@link PlacementMode#VANILLA}）时，所有写入改走原版 setBlock 并触发完整更新，只保留缓存、差异与撤销记录。
+ */
+public final class BulkPlacer implements BlockSink {
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+    private static final Set<Heightmap.Types> HEIGHTMAPS = EnumSet.of(
+            Heightmap.Types.MOTION_BLOCKING,
+            Heightmap.Types.MOTION_BLOCKING_NO_LEAVES,
+            Heightmap.Types.OCEAN_FLOOR,
+            Heightmap.Types.WORLD_SURFACE);
+
+    private final ServerLevel world;
+    private final boolean skipUnchanged;
+    private final Long2ObjectLinkedOpenHashMap<Int2ObjectOpenHashMap<SectionBatch>> pending = new Long2ObjectLinkedOpenHashMap<>();
+    private final ArrayDeque<SectionBatch> pool = new ArrayDeque<>();
+    private final BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
+    private final LongArrayList deferredPositions = new LongArrayList();
+    private final List<BlockState> deferredStates = new ArrayList<>();
+    private VoxelPlan.Builder recorder;
+    private boolean neighborUpdates;
+    private boolean deferUnloaded;
+    private int buffered;
+    private long skipped;
+
+    public BulkPlacer(ServerLevel world, boolean skipUnchanged) {
+        this.world = world;
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * 缓存一个写入；同一位置在 flush 前被多次写入时以最后一次为准。
+     */
+    @Override
+    public void add(int x, int y, int z, BlockState state) {
+        long chunkKey = ChunkPos.asLong(x >> 4, z >> 4);
+        Int2ObjectOpenHashMap<SectionBatch> sections = pending.get(chunkKey);
+        if (sections == null) {
+            sections = new Int2ObjectOpenHashMap<>();
+            pending.put(chunkKey, sections);
+        }
+        int sectionY = SectionPos.blockToSectionCoord(y);
+        SectionBatch batch = sections.get(sectionY);
+        if (batch == null) {
+            batch = pool.isEmpty() ? new SectionBatch() : pool.pop();
+            sections.put(sectionY, batch);
+        }
+        if (batch.put(((y & 15) << 8) | ((z & 15) << 4) | (x & 15), state)) {
+            buffered++;
+        }
+    }
+
+    /**
+     * 在每次实际写入前把该位置原有的方块状态记录到 {@code recorder}，用于撤销。
+     * 已有记录的位置不再覆盖，因此多个任务可以共用一个 recorder，记录的总是最初的状态。
+     */
+    public void recordPrevious(VoxelPlan.Builder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * 之后的 flush 是否改走原版 setBlock 并触发邻居与形状更新。
+     */
+    public void setNeighborUpdates(boolean neighborUpdates) {
+        this.neighborUpdates = neighborUpdates;
+    }
+
+    /**
+     * 之后的 flush 是否跳过尚未加载的 chunk（保留其写入）而不是同步加载。
+     */
+    public void setDeferUnloaded(boolean deferUnloaded) {
+        this.deferUnloaded = deferUnloaded;
+    }
+
+    /**
+     * 是否还有未落地的写入（包括等待 chunk 加载的）。
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    public int buffered() {
+        return buffered;
+    }
+
+    /**
+     * 差异模式下因状态未变化而跳过的写入总数。
+     */
+    @Override
+    public long skipped() {
+        return skipped;
+    }
+
+    /**
+     * 将缓存的写入落到世界中，返回实际写入的方块数。
+     */
+    @Override
+    public int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        ThreadedLevelLightEngine lightEngine = world.getChunkSource().getLightEngine();
+        int written = 0;
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.PLACE)) {
+            var it = pending.long2ObjectEntrySet().fastIterator();
+            while (it.hasNext()) {
+                Long2ObjectMap.Entry<Int2ObjectOpenHashMap<SectionBatch>> entry = it.next();
+                long chunkKey = entry.getLongKey();
+                LevelChunk chunk = deferUnloaded
+                        ? world.getChunkSource().getChunkNow(ChunkPos.getX(chunkKey), ChunkPos.getZ(chunkKey))
+                        : world.getChunk(ChunkPos.getX(chunkKey), ChunkPos.getZ(chunkKey));
+                if (chunk == null) {
+                    continue; // 等待异步加载
+                }
+                written += flushChunk(chunk, entry.getValue(), lightEngine);
+                for (SectionBatch batch : entry.getValue().values()) {
+                    buffered -= batch.size;
+                    batch.clear();
+                    pool.push(batch);
+                }
+                it.remove();
+            }
+            timer.units(written);
+        }
+        return written;
+    }
+
+    private int flushChunk(LevelChunk chunk, Int2ObjectMap<SectionBatch> sections, ThreadedLevelLightEngine lightEngine) {
+        int chunkX = chunk.getPos().x;
+        int chunkZ = chunk.getPos().z;
+        int written = 0;
+        for (Int2ObjectMap.Entry<SectionBatch> entry : sections.int2ObjectEntrySet()) {
+            int sectionY = entry.getIntKey();
+            int index = chunk.getSectionIndexFromSectionY(sectionY);
+            if (index < 0 || index >= chunk.getSectionsCount()) {
+                continue; // 超出世界高度
+            }
+            written += writeSection(chunk, chunk.getSection(index), chunkX, sectionY, chunkZ, entry.getValue(), lightEngine);
+        }
+        if (written == 0 || neighborUpdates) {
+            // setBlock 已自行维护高度图并逐个同步方块
+            return written;
+        }
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.CHUNK_SYNC)) {
+            timer.units(1);
+            Heightmap.primeHeightmaps(chunk, HEIGHTMAPS);
+            chunk.setUnsaved(true);
+            sendChunk(chunk, lightEngine);
+        }
+        return written;
+    }
+
+    private int writeSection(LevelChunk chunk, LevelChunkSection section, int chunkX, int sectionY, int chunkZ,
+                             SectionBatch batch, ThreadedLevelLightEngine lightEngine) {
+        int baseX = SectionPos.sectionToBlockCoord(chunkX);
+        int baseY = SectionPos.sectionToBlockCoord(sectionY);
+        int baseZ = SectionPos.sectionToBlockCoord(chunkZ);
+        boolean wasEmpty = section.hasOnlyAir();
+        int written = 0;
+
+        section.acquire();
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                int local = batch.order[i];
+                BlockState state = batch.states[local];
+                int lx = local & 15;
+                int lz = (local >> 4) & 15;
+                int ly = local >> 8;
+                mutable.set(baseX + lx, baseY + ly, baseZ + lz);
+                BlockState old = section.getBlockState(lx, ly, lz);
+                if (skipUnchanged && old == state) {
+                    skipped++;
+                    continue;
+                }
+                if (recorder != null) {
+                    recorder.setIfAbsent(mutable.getX(), mutable.getY(), mutable.getZ(), old);
+                }
+                if (neighborUpdates || old.hasBlockEntity() || state.hasBlockEntity()) {
+                    deferredPositions.add(mutable.asLong());
+                    deferredStates.add(state);
+                    continue;
+                }
+                section.setBlockState(lx, ly, lz, state, false);
+                world.onBlockStateChange(mutable, old, state);
+                if (LightEngine.hasDifferentLightProperties(chunk, mutable, old, state)) {
+                    lightEngine.checkBlock(mutable);
+                }
+                written++;
+            }
+        } finally {
+            section.release();
+        }
+
+        boolean isEmpty = section.hasOnlyAir();
+        if (wasEmpty != isEmpty) {
+            lightEngine.updateSectionStatus(SectionPos.of(chunkX, sectionY, chunkZ), isEmpty);
+        }
+
+        // 方块实体需要原版路径来创建/移除 BlockEntity，只占极少数；原版模式下所有写入都在这里
+        int flags = neighborUpdates ? Block.UPDATE_ALL : Block.UPDATE_CLIENTS;
+        for (int i = 0; i < deferredPositions.size(); i++) {
+            mutable.set(deferredPositions.getLong(i));
+            world.setBlock(mutable, deferredStates.get(i), flags);
+            written++;
+        }
+        deferredPositions.clear();
+        deferredStates.clear();
+        return written;
+    }
+
+    private void sendChunk(LevelChunk chunk, ThreadedLevelLightEngine lightEngine) {
+        List<ServerPlayer> players = world.getChunkSource().chunkMap.getPlayers(chunk.getPos(), false);
+        if (players.isEmpty()) {
+            return;
+        }
+        ClientboundLevelChunkWithLightPacket packet = new ClientboundLevelChunkWithLightPacket(chunk, lightEngine, null, null);
+        for (ServerPlayer player : players) {
+            player.connection.send(packet);
+        }
+    }
+
+    private static final class SectionBatch {
+        final BlockState[] states = new BlockState[SECTION_VOLUME];
+        final short[] order = new short[SECTION_VOLUME];
+        int size;
+
+        /**
+         * 记录写入，返回该位置是否为本批次首次写入。
+         */
+        boolean put(int local, BlockState state) {
+            boolean first = states[local] == null;
+            if (first) {
+                order[size++] = (short) local;
+            }
+            states[local] = state;
+            return first;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                states[order[i]] = null;
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongComparator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 一组临时 chunk 加载票据。加票后 chunk 由原版 chunk 系统在后台异步加载，持有期间不会被卸载；
+ * 放置时配合 {@link BulkPlacer} 的延迟模式只写已加载的 chunk，主线程不会因为读盘或生成而阻塞。
+ * 用完必须 {@link #release()}。所有方法只能在服务端主线程调用。
+ */
+public final class ChunkTickets {
+    // 票据值是持有者编号：同一 chunk 上不同持有者的票据互不相等，各自释放互不影响
+    private static final TicketType<Integer> TICKET = TicketType.create("p2s_build", Integer::compare);
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+    // 票据距离 0 对应 FULL 级别：chunk 完整加载但不参与实体/方块 tick
+    private static final int DISTANCE = 0;
+    // 预估占地外扩的方块数，模型经常用少量负坐标或略超出预设尺寸
+    private static final int PRELOAD_MARGIN = 8;
+    private static final Pattern FOOTPRINT = Pattern.compile("footprint\\s*<=?\\s*(\\d+)\\s*x\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private final int id = NEXT_ID.getAndIncrement();
+    private final ServerLevel world;
+    private final LongArrayList chunks;
+    private boolean released;
+
+    private ChunkTickets(ServerLevel world, LongArrayList chunks) {
+        this.world = world;
+        this.chunks = chunks;
+        ServerChunkCache source = world.getChunkSource();
+        for (int i = 0; i < chunks.size(); i++) {
+            source.addRegionTicket(TICKET, new ChunkPos(chunks.getLong(i)), DISTANCE, id);
+        }
+    }
+
+    /**
+     * 为计划涉及的所有 chunk 加票。
+     */
+    public static ChunkTickets forPlan(ServerLevel world, VoxelPlan plan) {
+        LongLinkedOpenHashSet keys = new LongLinkedOpenHashSet();
+        for (int i = 0; i < plan.sectionCount(); i++) {
+            long key = plan.sectionKey(i);
+            keys.add(ChunkPos.asLong(SectionPos.x(key), SectionPos.z(key)));
+        }
+        return new ChunkTickets(world, new LongArrayList(keys));
+    }
+
+    /**
+     * 在 LLM 生成期间按当前 prompt 预设估计的占地预加载目标区域：从放置点向 +x/+z 展开并向四周外扩，
+     * 按离放置点由近到远的顺序加票，总数不超过 {@link ModConfig#MAX_CHUNKS_PER_BUILD}。
+     */
+    public static ChunkTickets preload(ServerLevel world, BlockPos origin, String prompt) {
+        int[] footprint = presetFootprint(prompt);
+        int cx0 = SectionPos.blockToSectionCoord(origin.getX() - PRELOAD_MARGIN);
+        int cz0 = SectionPos.blockToSectionCoord(origin.getZ() - PRELOAD_MARGIN);
+        int cx1 = SectionPos.blockToSectionCoord(origin.getX() + footprint[0] + PRELOAD_MARGIN);
+        int cz1 = SectionPos.blockToSectionCoord(origin.getZ() + footprint[1] + PRELOAD_MARGIN);
+        int originX = SectionPos.blockToSectionCoord(origin.getX());
+        int originZ = SectionPos.blockToSectionCoord(origin.getZ());
+        LongArrayList chunks = new LongArrayList();
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cz = cz0; cz <= cz1; cz++) {
+                chunks.add(ChunkPos.asLong(cx, cz));
+            }
+        }
+        chunks.sort((LongComparator) (a, b) -> Integer.compare(
+                Math.abs(ChunkPos.getX(a) - originX) + Math.abs(ChunkPos.getZ(a) - originZ),
+                Math.abs(ChunkPos.getX(b) - originX) + Math.abs(ChunkPos.getZ(b) - originZ)));
+        int cap = Math.max(1, ModConfig.MAX_CHUNKS_PER_BUILD);
+        if (chunks.size() > cap) {
+            chunks.size(cap);
+        }
+        P2SMod.LOGGER.debug("Preloading {} chunk(s) around {} for a {}x{} footprint", chunks.size(), origin, footprint[0], footprint[1]);
+        return new ChunkTickets(world, chunks);
+    }
+
+    /**
+     * 从预设提示词里的 "footprint <= 12x20" 读取占地（x、z），没有写明时使用配置的默认值。
+     */
+    static int[] presetFootprint(String prompt) {
+        int fallback = Math.max(1, ModConfig.BUILD_PRELOAD_FOOTPRINT);
+        if (prompt != null) {
+            Matcher matcher = FOOTPRINT.matcher(prompt);
+            if (matcher.find()) {
+                try {
+                    return new int[]{Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+                } catch (NumberFormatException ignored) {
+                    // 数字过大，按默认值处理
+                }
+            }
+        }
+        return new int[]{fallback, fallback};
+    }
+
+    /**
+     * 已完整加载的 chunk 数。
+     */
+    public int loaded() {
+        ServerChunkCache source = world.getChunkSource();
+        int loaded = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            long key = chunks.getLong(i);
+            if (source.getChunkNow(ChunkPos.getX(key), ChunkPos.getZ(key)) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    public int size() {
+        return chunks.size();
+    }
+
+    /**
+     * 移除全部票据；重复调用无效果。
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        ServerChunkCache source = world.getChunkSource();
+        for (int i = 0; i < chunks.size(); i++) {
+            source.removeRegionTicket(TICKET, new ChunkPos(chunks.getLong(i)), DISTANCE, id);
+        }
+    }
+}
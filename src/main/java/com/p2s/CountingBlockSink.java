@@ -0,0 +1,47 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * 空跑目标：不写任何东西，只统计写入数与涉及的 chunk，用于在不动世界的情况下测量写入流本身。
+ */
+public final class CountingBlockSink implements BlockSink {
+    private final LongOpenHashSet chunks = new LongOpenHashSet();
+    private long lastChunk = Long.MIN_VALUE;
+    private long writes;
+    private int pending;
+    private int flushes;
+
+    @Override
+    public void add(int x, int y, int z, BlockState state) {
+        long chunk = ChunkPos.asLong(x >> 4, z >> 4);
+        if (chunk != lastChunk) {
+            chunks.add(chunk);
+            lastChunk = chunk;
+        }
+        pending++;
+    }
+
+    @Override
+    public int flush() {
+        int written = pending;
+        writes += written;
+        pending = 0;
+        flushes++;
+        return written;
+    }
+
+    public long writes() {
+        return writes + pending;
+    }
+
+    public int chunks() {
+        return chunks.size();
+    }
+
+    public int flushes() {
+        return flushes;
+    }
+}
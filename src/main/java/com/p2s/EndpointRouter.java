@@ -0,0 +1,431 @@
+package com.p2s;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 多接口路由：按 {@link ModConfig#ENDPOINTS} 的权重与最近观测到的响应延迟（p50/p95）选择接口，
+ * 5xx、429、超时或连接失败时自动换下一个接口，失败的接口在 {@link ModConfig#LLM_ENDPOINT_COOLDOWN_SECONDS} 内排到最后。
+ * {@link ModConfig#LLM_HEDGE_DELAY_MS} 大于 0 时开启对冲：首个接口在该时间内没有响应，就把同一请求再发给下一个接口，
+ * 先返回成功响应头的一方胜出，另一方被取消。
+ * <p>
+ * 竞争与延迟统计都以收到响应头为准：非流式请求的响应头在生成结束后才到达，流式请求则在首个片段之前到达，
+ * 因此流式请求一旦开始交付内容就只会有一个接口在写。
+ */
+final class EndpointRouter {
+    private static final int WINDOW = 64;
+    // 样本数不足时不参与延迟估计，按已观测接口中最快的处理，保证新接口也能分到请求
+    private static final int MIN_SAMPLES = 3;
+    private static volatile List<ModConfig.Endpoint> configured = List.of();
+    private static volatile List<Route> routes = List.of();
+
+    private EndpointRouter() {
+    }
+
+    /**
+     * 打开一次请求：返回第一个成功（2xx）的响应，调用方负责关闭。所有接口都失败时抛出最后一个错误；
+     * 4xx（429 除外）视为请求本身有问题，不再尝试其他接口。
+     */
+    static Response open(OkHttpClient client, Function<ModConfig.Endpoint, Request> requestFor) throws IOException {
+        List<Route> order = plan();
+        long hedgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ModConfig.LLM_HEDGE_DELAY_MS));
+        IOException last = null;
+        int next = 0;
+        while (next < order.size()) {
+            Race race = new Race(client, requestFor);
+            race.start(order.get(next++));
+            if (hedgeNanos > 0 && next < order.size() && !race.await(hedgeNanos)) {
+                Route hedge = order.get(next++);
+                P2SMod.LOGGER.info("LLM endpoint slow, hedging with {}", hedge.endpoint.name());
+                race.start(hedge);
+            }
+            race.awaitSettled();
+            Response winner = race.finish();
+            if (winner != null) {
+                return winner;
+            }
+            last = race.error;
+            if (race.fatal) {
+                throw last;
+            }
+            if (next < order.size()) {
+                P2SMod.LOGGER.warn("LLM endpoint failed ({}), failing over to {}", last.getMessage(), order.get(next).endpoint.name());
+            }
+        }
+        throw last != null ? last : new IOException("没有可用的 LLM 接口");
+    }
+
+    /**
+     * 参与缓存键的模型标识：所有接口的模型去重后拼接，换模型不会命中旧结果。
+     */
+    static String modelKey() {
+        return ModConfig.ENDPOINTS.stream().map(ModConfig.Endpoint::model).distinct().sorted().collect(Collectors.joining(","));
+    }
+
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Route route : routes()) {
+            long p50 = route.percentile(0.50);
+            long p95 = route.percentile(0.95);
+            StringBuilder line = new StringBuilder()
+                    .append("endpoint ").append(route.endpoint.name())
+                    .append(": weight=").append(route.endpoint.weight())
+                    .append(" n=").append(route.samples())
+                    .append(" p50=").append(p50 < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(p50) + "ms")
+                    .append(" p95=").append(p95 < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(p95) + "ms")
+                    .append(" failures=").append(route.failures);
+            if (route.isDown(now)) {
+                line.append(" (cooling down ").append(TimeUnit.NANOSECONDS.toSeconds(route.downUntil - now)).append("s)");
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * 配置变化（重载）时重建路由表；同名同地址的接口保留已有的延迟统计。
+     */
+    private static List<Route> routes() {
+        List<ModConfig.Endpoint> endpoints = ModConfig.ENDPOINTS;
+        if (endpoints != configured) {
+            synchronized (EndpointRouter.class) {
+                if (endpoints != configured) {
+                    Map<String, Route> previous = new HashMap<>();
+                    for (Route route : routes) {
+                        previous.put(route.endpoint.name() + "\u0000" + route.endpoint.url(), route);
+                    }
+                    List<Route> rebuilt = new ArrayList<>();
+                    for (ModConfig.Endpoint endpoint : endpoints) {
+                        Route old = previous.get(endpoint.name() + "\u0000" + endpoint.url());
+                        rebuilt.add(old == null ? new Route(endpoint) : old.withEndpoint(endpoint));
+                    }
+                    routes = List.copyOf(rebuilt);
+                    configured = endpoints;
+                }
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * 本次请求尝试接口的顺序：可用接口中第一个按 权重 / 预期延迟 加权随机抽取，其余按同一得分从高到低；
+     * 冷却中的接口排在最后，仍作为最终的后备。
+     */
+    private static List<Route> plan() {
+        List<Route> all = routes();
+        long now = System.nanoTime();
+        long fastest = Long.MAX_VALUE;
+        for (Route route : all) {
+            long cost = route.cost();
+            if (cost > 0) {
+                fastest = Math.min(fastest, cost);
+            }
+        }
+        long fallback = fastest == Long.MAX_VALUE ? 1 : fastest;
+        List<Route> healthy = new ArrayList<>();
+        List<Route> down = new ArrayList<>();
+        Map<Route, Double> score = new HashMap<>();
+        for (Route route : all) {
+            long cost = route.cost();
+            score.put(route, route.endpoint.weight() / (double) (cost > 0 ? cost : fallback));
+            (route.isDown(now) ? down : healthy).add(route);
+        }
+        Comparator<Route> byScore = Comparator.comparingDouble((Route r) -> score.get(r)).reversed();
+        healthy.sort(byScore);
+        down.sort(Comparator.comparingLong(r -> r.downUntil));
+        if (healthy.size() > 1) {
+            double total = 0;
+            for (Route route : healthy) {
+                total += score.get(route);
+            }
+            double pick = ThreadLocalRandom.current().nextDouble(total);
+            for (int i = 0; i < healthy.size(); i++) {
+                pick -= score.get(healthy.get(i));
+                if (pick < 0) {
+                    healthy.add(0, healthy.remove(i));
+                    break;
+                }
+            }
+        }
+        healthy.addAll(down);
+        return healthy;
+    }
+
+    private static final class Route {
+        final ModConfig.Endpoint endpoint;
+        private final long[] latency;
+        private int next;
+        private int size;
+        volatile long downUntil;
+        volatile int failures;
+
+        Route(ModConfig.Endpoint endpoint) {
+            this(endpoint, new long[WINDOW]);
+        }
+
+        private Route(ModConfig.Endpoint endpoint, long[] latency) {
+            this.endpoint = endpoint;
+            this.latency = latency;
+        }
+
+        synchronized Route withEndpoint(ModConfig.Endpoint endpoint) {
+            Route route = new Route(endpoint, latency.clone());
+            route.next = next;
+            route.size = size;
+            route.failures = failures;
+            route.downUntil = downUntil;
+            return route;
+        }
+
+        synchronized void succeeded(long nanos) {
+            latency[next] = nanos;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+            downUntil = 0;
+        }
+
+        synchronized void failed() {
+            failures++;
+            downUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(0, ModConfig.LLM_ENDPOINT_COOLDOWN_SECONDS));
+        }
+
+        boolean isDown(long now) {
+            return downUntil != 0 && now - downUntil < 0;
+        }
+
+        synchronized int samples() {
+            return size;
+        }
+
+        /**
+         * 预期延迟：p50 与 p95 的平均，兼顾常态与尾部；样本不足时返回 -1。
+         */
+        long cost() {
+            long p50 = percentile(0.50);
+            long p95 = percentile(0.95);
+            return p50 < 0 ? -1 : Math.max(1, (p50 + p95) / 2);
+        }
+
+        synchronized long percentile(double q) {
+            if (size < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latency, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(q * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+
+    /**
+     * 同一请求在一个或两个接口上的竞争。各个调用在虚拟线程上执行，结果汇入队列；
+     * 决出胜负后迟到的成功响应直接关闭。
+     */
+    private static final class Race {
+        private final OkHttpClient client;
+        private final Function<ModConfig.Endpoint, Request> requestFor;
+        private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        private final List<Call> calls = new ArrayList<>();
+        private boolean decided;
+        private int started;
+        private int finished;
+        private Outcome winner;
+        IOException error;
+        boolean fatal;
+
+        Race(OkHttpClient client, Function<ModConfig.Endpoint, Request> requestFor) {
+            this.client = client;
+            this.requestFor = requestFor;
+        }
+
+        void start(Route route) {
+            started++;
+            RequestScheduler.executor().execute(() -> {
+                Outcome outcome = attempt(route);
+                synchronized (this) {
+                    if (!decided) {
+                        outcomes.add(outcome);
+                        return;
+                    }
+                }
+                if (outcome.response != null) {
+                    outcome.response.close();
+                }
+            });
+        }
+
+        private Outcome attempt(Route route) {
+            ModConfig.Endpoint endpoint = route.endpoint;
+            Call call;
+            try {
+                RequestScheduler.throttle(endpoint.url());
+                call = client.newCall(requestFor.apply(endpoint));
+            } catch (RuntimeException e) {
+                return new Outcome(route, null, null, new IOException(e.getMessage(), e), false);
+            }
+            synchronized (this) {
+                if (decided) {
+                    return new Outcome(route, call, null, new IOException("已取消"), false);
+                }
+                calls.add(call);
+            }
+            P2SMod.LOGGER.info("LLM request -> endpoint={}, url={}, model={}, timeout={}s",
+                    endpoint.name(), endpoint.url(), endpoint.model(), ModConfig.HTTP_TIMEOUT_SECONDS);
+            long start = System.nanoTime();
+            try {
+                Response response = call.execute();
+                if (response.isSuccessful()) {
+                    route.succeeded(System.nanoTime() - start);
+                    return new Outcome(route, call, response, null, false);
+                }
+                int code = response.code();
+                long retryAfter = retryAfterMillis(response.header("Retry-After"));
+                String errBody = response.body() == null ? "" : response.body().string();
+                response.close();
+                P2SMod.LOGGER.error("LLM failed endpoint={}, status={}, body={}", endpoint.name(), code, LLMService.truncate(errBody));
+                HttpStatusException error = new HttpStatusException(code, retryAfter);
+                if (error.retryable()) {
+                    route.failed();
+                }
+                return new Outcome(route, call, null, error, !error.retryable());
+            } catch (IOException e) {
+                // 超时、连接失败；被对冲的另一方取消时也会走到这里，此时不计为接口故障
+                if (!call.isCanceled()) {
+                    route.failed();
+                    P2SMod.LOGGER.warn("LLM endpoint {} failed: {}", endpoint.name(), e.toString());
+                }
+                return new Outcome(route, call, null, e, false);
+            }
+        }
+
+        /**
+         * 最多等待 {@code nanos}，返回是否已决出结果（有成功响应或所有调用都失败）。
+         */
+        boolean await(long nanos) throws InterruptedIOException {
+            long deadline = System.nanoTime() + nanos;
+            while (winner == null && finished < started) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    Outcome outcome = outcomes.poll(left, TimeUnit.NANOSECONDS);
+                    if (outcome == null) {
+                        return false;
+                    }
+                    accept(outcome);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待 LLM 响应时被中断");
+                }
+            }
+            return true;
+        }
+
+        void awaitSettled() throws InterruptedIOException {
+            while (winner == null && finished < started) {
+                try {
+                    accept(outcomes.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待 LLM 响应时被中断");
+                }
+            }
+        }
+
+        private void accept(Outcome outcome) {
+            finished++;
+            if (outcome.response != null) {
+                winner = outcome;
+            } else {
+                error = outcome.error;
+                fatal |= outcome.fatal;
+            }
+        }
+
+        /**
+         * 结束竞争：取消其余调用，关闭已排队但落败的响应，返回胜出的响应（没有则为 null）。
+         */
+        Response finish() {
+            List<Outcome> late = new ArrayList<>();
+            synchronized (this) {
+                decided = true;
+                for (Call call : calls) {
+                    if (winner == null || call != winner.call) {
+                        call.cancel();
+                    }
+                }
+                outcomes.drainTo(late);
+            }
+            for (Outcome outcome : late) {
+                if (outcome.response != null) {
+                    outcome.response.close();
+                }
+            }
+            if (winner != null && started > 1) {
+                P2SMod.LOGGER.info("LLM hedged request won by {}", winner.route.endpoint.name());
+            }
+            return winner == null ? null : winner.response;
+        }
+    }
+
+    /**
+     * 解析以秒为单位的 Retry-After；HTTP 日期格式或缺失时返回 0。
+     */
+    private static long retryAfterMillis(String header) {
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(header.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private record Outcome(Route route, Call call, Response response, IOException error, boolean fatal) {
+    }
+
+    /**
+     * 接口返回了非 2xx 状态码。
+     */
+    static final class HttpStatusException extends IOException {
+        private final int code;
+        private final long retryAfterMillis;
+
+        HttpStatusException(int code, long retryAfterMillis) {
+            super("请求失败，状态码: " + code);
+            this.code = code;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * 5xx、429 与 408 是暂时性的，可以换接口或稍后重试；其他状态码说明请求本身有问题。
+         */
+        boolean retryable() {
+            return code >= 500 || code == 429 || code == 408;
+        }
+
+        long retryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+}
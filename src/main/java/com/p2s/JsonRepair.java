@@ -0,0 +1,116 @@
+package com.p2s;
+
+/**
+ * 严格解析失败后的本地修复，处理模型输出中最常见的几类语法问题，省去一次重新生成：
+ * <ul>
+ *   <li>根对象前后的说明文字（从第一个 {@code {} 开始，根对象闭合后的内容全部丢弃）；</li>
+ *   <li>多余的逗号（{@code ,}} / {@code ,]} / {@code ,,}）；</li>
+ *   <li>闭合符号与开启符号不匹配时按实际的嵌套补上正确的闭合符号；</li>
+ *   <li>输出被截断：退回到最后一个在根对象下两层以内闭合的位置（即最后一个完整的层或调色板），
+ *       再补齐未闭合的括号。不完整的最后一层整体丢弃，不会留下缺了一半动作的层。</li>
+ * </ul>
+ * 只做结构层面的修正，不改字符串内容；修复后仍需经过正常解析。
+ */
+final class JsonRepair {
+    // 截断时可以安全截止的最大嵌套深度：根对象(1) → structure 数组(2) 中的层对象闭合后
+    private static final int SAFE_DEPTH = 2;
+
+    private JsonRepair() {
+    }
+
+    /**
+     * 返回修复后的文本；找不到根对象或截断得连一个完整的层都没有时返回 null。
+     */
+    static String repair(String text) {
+        int start = text.indexOf('{');
+        if (start < 0) {
+            return null;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        StringBuilder stack = new StringBuilder();
+        StringBuilder gap = new StringBuilder(); // 暂存逗号之后的空白，以便丢弃多余的逗号
+        boolean comma = false;
+        boolean inString = false;
+        boolean escape = false;
+        boolean complete = false;
+        int safeLength = -1;
+        String safeClosers = null;
+        for (int i = start; i < text.length() && !complete; i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                out.append(c);
+                if (escape) {
+                    escape = false;
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            switch (c) {
+                case ',' -> {
+                    // 连续的逗号只保留一个
+                    comma = true;
+                    continue;
+                }
+                case '}', ']' -> {
+                    if (stack.isEmpty()) {
+                        complete = true;
+                        continue;
+                    }
+                    // 闭合前的逗号是多余的
+                    out.append(gap);
+                    gap.setLength(0);
+                    comma = false;
+                    char open = stack.charAt(stack.length() - 1);
+                    stack.setLength(stack.length() - 1);
+                    out.append(open == '{' ? '}' : ']');
+                    if (stack.isEmpty()) {
+                        complete = true;
+                    } else if (stack.length() <= SAFE_DEPTH) {
+                        safeLength = out.length();
+                        safeClosers = closers(stack);
+                    }
+                    continue;
+                }
+                default -> {
+                }
+            }
+            if (Character.isWhitespace(c)) {
+                if (comma) {
+                    gap.append(c);
+                } else {
+                    out.append(c);
+                }
+                continue;
+            }
+            if (comma) {
+                out.append(',').append(gap);
+                gap.setLength(0);
+                comma = false;
+            }
+            out.append(c);
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                stack.append(c);
+            }
+        }
+        if (complete) {
+            return out.toString();
+        }
+        if (safeLength < 0) {
+            return null;
+        }
+        return out.substring(0, safeLength) + safeClosers;
+    }
+
+    private static String closers(CharSequence stack) {
+        StringBuilder closers = new StringBuilder(stack.length());
+        for (int i = stack.length() - 1; i >= 0; i--) {
+            closers.append(stack.charAt(i) == '{' ? '}' : ']');
+        }
+        return closers.toString();
+    }
+}
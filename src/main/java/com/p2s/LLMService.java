@@ -3,23 +3,30 @@ package com.p2s;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.time.Duration;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 public final class LLMService {
     private static final Gson GSON = new Gson();
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
-    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static final double TEMPERATURE = 0.4;
+    private static final long MAX_BACKOFF_MS = 30_000;
     private static volatile OkHttpClient CLIENT = buildClient(ModConfig.HTTP_TIMEOUT_SECONDS);
     private static volatile int CLIENT_TIMEOUT_SECONDS = ModConfig.HTTP_TIMEOUT_SECONDS;
 
@@ -27,35 +34,228 @@ public final class LLMService {
     }
 
     public static CompletableFuture<Result> requestStructure(String userPrompt) {
-        return CompletableFuture.supplyAsync(() -> {
-            String bodyJson = buildBody(userPrompt);
-            P2SMod.LOGGER.info("LLM request -> url={}, model={}, timeout={}s", ModConfig.API_URL, ModConfig.MODEL, ModConfig.HTTP_TIMEOUT_SECONDS);
+        return cached(userPrompt, () -> fetchStructure(userPrompt));
+    }
+
+    /**
+     * 传输错误与 429/5xx 按指数退避重试（{@link #withRetry}）；内容经本地修复仍无法解析时才重新向模型请求，
+     * 最多 {@link ModConfig#LLM_REPROMPT_ATTEMPTS} 次。
+     */
+    private static CompletableFuture<Result> fetchStructure(String userPrompt) {
+        return RequestScheduler.submit(() -> {
             P2SMod.LOGGER.info("Active prompt preset: {}", ModConfig.activePromptName());
             P2SMod.LOGGER.info("LLM prompt: {}", userPrompt);
-            Request request = new Request.Builder()
-                    .url(ModConfig.API_URL)
-                    .post(RequestBody.create(bodyJson, JSON))
-                    .header("Authorization", "Bearer " + ModConfig.API_KEY)
-                    .build();
-
-            try (Response response = getClient().newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    String errBody = response.body() == null ? "" : response.body().string();
-                    P2SMod.LOGGER.error("LLM failed status={}, body={}", response.code(), truncate(errBody));
-                    throw new IOException("请求失败，状态码: " + response.code());
+
+            try {
+                String prompt = userPrompt;
+                for (int attempt = 0; ; attempt++) {
+                    String current = prompt;
+                    String respBody = withRetry(() -> readBody(current), () -> true);
+                    P2SMod.LOGGER.info("LLM raw response (truncated): {}", truncate(respBody));
+                    try {
+                        return parseResponse(respBody);
+                    } catch (IllegalArgumentException e) {
+                        if (attempt >= ModConfig.LLM_REPROMPT_ATTEMPTS) {
+                            throw e;
+                        }
+                        prompt = reprompt(userPrompt, e);
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("LLM 请求异常: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private static String readBody(String prompt) throws IOException {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.LLM);
+             Response response = EndpointRouter.open(getClient(), endpoint -> request(endpoint, prompt, false))) {
+            String respBody = response.body() == null ? "" : response.body().string();
+            timer.units(respBody.length());
+            return respBody;
+        }
+    }
+
+    /**
+     * 以 SSE 流式模式（{@code stream: true}）请求：边读边增量解析，调色板与每个完整的层一出现就回调 {@code listener}
+     * （在读取响应的线程上，按出现顺序）。返回的结果仍以完整内容的解析为准（必要时经 {@link JsonRepair} 修复）。
+     * 服务端不支持流式、直接返回普通 JSON 时按非流式处理，此时不会有任何回调；
+     * 命中 {@link ResponseCache} 或并入另一个相同的在途请求时同样没有回调。
+     */
+    public static CompletableFuture<Result> streamStructure(String userPrompt, StreamListener listener) {
+        return cached(userPrompt, () -> fetchStream(userPrompt, listener));
+    }
+
+    /**
+     * 经过 {@link ResponseCache}：键包含所有接口的模型、当前系统提示词与 temperature，切换预设或模型不会命中旧结果。
+     */
+    private static CompletableFuture<Result> cached(String userPrompt, Supplier<CompletableFuture<Result>> fetch) {
+        String key = ResponseCache.key(EndpointRouter.modelKey(), ModConfig.currentSystemPrompt(), userPrompt, TEMPERATURE);
+        return ResponseCache.get(key, RequestScheduler.executor(), fetch);
+    }
+
+    /**
+     * 同 {@link #fetchStructure}，但已有内容交给 {@code listener} 之后不再重试或重新请求：
+     * 新的回答与已经开始构建的层对不上。
+     */
+    private static CompletableFuture<Result> fetchStream(String userPrompt, StreamListener listener) {
+        return RequestScheduler.submit(() -> {
+            P2SMod.LOGGER.info("Active prompt preset: {}", ModConfig.activePromptName());
+            P2SMod.LOGGER.info("LLM stream prompt: {}", userPrompt);
+
+            try {
+                String prompt = userPrompt;
+                for (int attempt = 0; ; attempt++) {
+                    String current = prompt;
+                    CountingListener counting = new CountingListener(listener);
+                    try {
+                        return withRetry(() -> streamOnce(current, counting), () -> counting.delivered == 0);
+                    } catch (IllegalArgumentException e) {
+                        if (attempt >= ModConfig.LLM_REPROMPT_ATTEMPTS || counting.delivered > 0) {
+                            throw e;
+                        }
+                        prompt = reprompt(userPrompt, e);
+                    }
                 }
-                String respBody = response.body() == null ? "" : response.body().string();
-                P2SMod.LOGGER.info("LLM raw response (truncated): {}", truncate(respBody));
-                return parseResponse(respBody);
             } catch (Exception e) {
                 throw new RuntimeException("LLM 请求异常: " + e.getMessage(), e);
             }
-        }, EXECUTOR);
+        });
+    }
+
+    private static Result streamOnce(String prompt, CountingListener listener) throws IOException {
+        String fullMessage;
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.LLM);
+             Response response = EndpointRouter.open(getClient(), endpoint -> request(endpoint, prompt, true))) {
+            ResponseBody body = response.body();
+            String contentType = response.header("Content-Type", "");
+            if (body == null || !contentType.startsWith("text/event-stream")) {
+                String respBody = body == null ? "" : body.string();
+                timer.units(respBody.length());
+                P2SMod.LOGGER.info("LLM endpoint ignored stream mode, raw response (truncated): {}", truncate(respBody));
+                // 内容错误以 IllegalArgumentException 抛出，withRetry 不会重试，由外层重新请求
+                return parseResponse(respBody);
+            }
+            fullMessage = readStream(body.source(), listener);
+            timer.units(fullMessage.length());
+        }
+        return parseContent(fullMessage);
+    }
+
+    /**
+     * 执行 {@code call}，传输错误（超时、连接失败、流中断）与 429/5xx 最多重试 {@link ModConfig#LLM_RETRIES} 次，
+     * 间隔从 {@link ModConfig#LLM_RETRY_BASE_MS} 起指数增长并加随机抖动，接口给出 Retry-After 时至少等待该时长。
+     * 其他 4xx 与 {@code canRetry} 返回 false 时直接抛出。
+     */
+    private static <T> T withRetry(IOCall<T> call, BooleanSupplier canRetry) throws IOException {
+        int retries = Math.max(0, ModConfig.LLM_RETRIES);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return call.call();
+            } catch (IOException e) {
+                boolean retryable = !(e instanceof EndpointRouter.HttpStatusException status) || status.retryable();
+                if (attempt >= retries || !retryable || Thread.currentThread().isInterrupted() || !canRetry.getAsBoolean()) {
+                    throw e;
+                }
+                long delay = backoffMillis(attempt, e);
+                P2SMod.LOGGER.warn("LLM request failed ({}), retry {}/{} in {}ms", e.getMessage(), attempt + 1, retries, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待重试时被中断");
+                }
+            }
+        }
+    }
+
+    private static long backoffMillis(int attempt, IOException cause) {
+        long base = Math.max(1, ModConfig.LLM_RETRY_BASE_MS);
+        long exp = Math.min(MAX_BACKOFF_MS, base << Math.min(attempt, 16));
+        // 抖动取 [exp/2, exp]，避免多个等待者同时重试
+        long delay = exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1);
+        if (cause instanceof EndpointRouter.HttpStatusException status && status.retryAfterMillis() > 0) {
+            delay = Math.max(delay, Math.min(MAX_BACKOFF_MS, status.retryAfterMillis()));
+        }
+        return delay;
+    }
+
+    private static String reprompt(String userPrompt, IllegalArgumentException e) {
+        String reason = e.getCause() != null && e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getMessage();
+        P2SMod.LOGGER.warn("LLM content unusable after local repair ({}), asking the model again", reason);
+        return userPrompt + "\n\nYour previous answer could not be parsed (" + reason
+                + "). Reply with one complete, valid JSON object that follows the schema, and nothing else.";
+    }
+
+    /**
+     * 逐行读取 SSE 事件，拼接每个 {@code choices[0].delta.content} 片段并送入增量解析器，返回完整的消息内容。
+     * 事件本身无法解析（连接在事件中途断开或服务端输出损坏）时：还没有内容交给 {@code listener} 就按传输错误抛出
+     * {@link IOException}，由 {@link #withRetry} 重试；已有内容交出时停止读取，返回已收到的部分交给本地修复保留完整的层。
+     */
+    private static String readStream(BufferedSource source, CountingListener listener) throws IOException {
+        VbsStreamParser parser = new VbsStreamParser(listener);
+        StringBuilder content = new StringBuilder();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) {
+                continue; // 空行、注释与 event/id 字段
+            }
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            if (data.isEmpty()) {
+                continue;
+            }
+            String piece;
+            try {
+                piece = deltaContent(data);
+            } catch (JsonParseException | IllegalStateException | ClassCastException | UnsupportedOperationException e) {
+                if (listener.delivered == 0) {
+                    throw new IOException("SSE 事件无法解析: " + e.getMessage(), e);
+                }
+                P2SMod.LOGGER.warn("LLM stream cut off after {} callback(s), keeping what was received: {}",
+                        listener.delivered, e.getMessage());
+                break;
+            }
+            if (piece == null) {
+                continue;
+            }
+            content.append(piece);
+            parser.feed(piece);
+        }
+        return content.toString();
+    }
+
+    /**
+     * 一个 SSE 事件中的 {@code choices[0].delta.content}，没有内容时返回 null。
+     */
+    private static String deltaContent(String data) {
+        JsonArray choices = JsonParser.parseString(data).getAsJsonObject().getAsJsonArray("choices");
+        if (choices == null || choices.isEmpty()) {
+            return null;
+        }
+        JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+        if (delta == null || !delta.has("content") || delta.get("content").isJsonNull()) {
+            return null;
+        }
+        return delta.get("content").getAsString();
+    }
+
+    private static Request request(ModConfig.Endpoint endpoint, String userPrompt, boolean stream) {
+        Request.Builder builder = new Request.Builder()
+                .url(endpoint.url())
+                .post(RequestBody.create(buildBody(userPrompt, endpoint.model(), stream), JSON))
+                .header("Authorization", "Bearer " + endpoint.apiKey());
+        if (stream) {
+            builder.header("Accept", "text/event-stream");
+        }
+        return builder.build();
     }
 
-    private static String buildBody(String userPrompt) {
+    private static String buildBody(String userPrompt, String model, boolean stream) {
         JsonObject body = new JsonObject();
-        body.addProperty("model", ModConfig.MODEL);
+        body.addProperty("model", model);
 
         JsonArray messages = new JsonArray();
         JsonObject systemMsg = new JsonObject();
@@ -69,37 +269,71 @@ public final class LLMService {
         messages.add(userMsg);
 
         body.add("messages", messages);
-        body.addProperty("temperature", 0.4);
+        body.addProperty("temperature", TEMPERATURE);
         JsonObject responseFormat = new JsonObject();
         responseFormat.addProperty("type", "json_object");
         body.add("response_format", responseFormat);
+        if (stream) {
+            body.addProperty("stream", true);
+        }
         return GSON.toJson(body);
     }
 
-    private static Result parseResponse(String responseBody) throws IOException {
-        JsonObject root = JsonParser.parseString(responseBody).getAsJsonObject();
-
-        JsonArray choices = root.getAsJsonArray("choices");
-        if (choices == null || choices.isEmpty()) {
-            throw new IOException("LLM 未返回内容");
+    /**
+     * 响应体为空、不是 JSON 或缺少内容都属于内容错误，抛出 {@link IllegalArgumentException} 交给重新请求处理，
+     * 不按传输错误重试。
+     */
+    private static Result parseResponse(String responseBody) {
+        JsonObject message;
+        try {
+            JsonObject root = JsonParser.parseString(responseBody).getAsJsonObject();
+            JsonArray choices = root.getAsJsonArray("choices");
+            if (choices == null || choices.isEmpty()) {
+                throw new IllegalArgumentException("LLM 未返回内容");
+            }
+            message = choices.get(0).getAsJsonObject().getAsJsonObject("message");
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            throw new IllegalArgumentException("LLM 响应格式无效: " + e.getMessage(), e);
         }
-
-        JsonObject firstChoice = choices.get(0).getAsJsonObject();
-        JsonObject message = firstChoice.getAsJsonObject("message");
-        if (message == null || !message.has("content")) {
-            throw new IOException("响应缺少 message.content 字段");
+        if (message == null || !message.has("content") || message.get("content").isJsonNull()) {
+            throw new IllegalArgumentException("响应缺少 message.content 字段");
         }
 
-        String fullMessage = message.get("content").getAsString();
+        return parseContent(message.get("content").getAsString());
+    }
+
+    /**
+     * 严格解析失败时先尝试 {@link JsonRepair} 本地修复。无论是否修复，结果必须至少有一层，
+     * 否则抛出 {@link IllegalArgumentException}（由调用方重新请求）。
+     */
+    static Result parseContent(String fullMessage) {
         String content = cleanContent(fullMessage);
         P2SMod.LOGGER.info("LLM cleaned content (truncated): {}", truncate(content));
+        StructureBuilder.VbsScript parsed;
         try {
-            StructureBuilder.VbsScript script = StructureBuilder.parse(content);
-            return new Result(content, fullMessage, script);
-        } catch (Exception e) {
+            parsed = StructureBuilder.parse(content);
+        } catch (RuntimeException e) {
+            String repaired = JsonRepair.repair(content);
+            if (repaired != null && !repaired.equals(content)) {
+                try {
+                    StructureBuilder.VbsScript script = StructureBuilder.parse(repaired);
+                    if (script != null && script.structure != null && !script.structure.isEmpty()) {
+                        P2SMod.LOGGER.warn("LLM content repaired locally ({} -> {} chars, {} layer(s))",
+                                content.length(), repaired.length(), script.structure.size());
+                        return new Result(repaired, fullMessage, script);
+                    }
+                } catch (RuntimeException ignored) {
+                    // 修复后仍无法解析，按原错误处理
+                }
+            }
             P2SMod.LOGGER.error("LLM content parse failed, content snippet: {}", truncate(content));
             throw e;
         }
+        if (parsed == null || parsed.structure == null || parsed.structure.isEmpty()) {
+            P2SMod.LOGGER.error("LLM content has no layers, content snippet: {}", truncate(content));
+            throw new IllegalArgumentException("LLM 返回的结构为空");
+        }
+        return new Result(content, fullMessage, parsed);
     }
 
     private static String cleanContent(String content) {
@@ -138,7 +372,7 @@ public final class LLMService {
         return text.substring(start + 3 + (text.startsWith("```json", start) ? 4 : 0), end);
     }
 
-    private static String truncate(String text) {
+    static String truncate(String text) {
         if (text == null) {
             return "";
         }
@@ -168,6 +402,47 @@ public final class LLMService {
                 .build();
     }
 
+    @FunctionalInterface
+    private interface IOCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * 记录是否已有内容交给下游监听器。
+     */
+    private static final class CountingListener implements StreamListener {
+        private final StreamListener delegate;
+        int delivered;
+
+        CountingListener(StreamListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onPalette(Map<String, String> palette) {
+            delivered++;
+            delegate.onPalette(palette);
+        }
+
+        @Override
+        public void onLayer(int index, StructureBuilder.VbsLayer layer) {
+            delivered++;
+            delegate.onLayer(index, layer);
+        }
+    }
+
     public record Result(String rawContent, String fullMessage, StructureBuilder.VbsScript script) {
     }
+
+    /**
+     * 流式请求的增量回调。
+     */
+    public interface StreamListener {
+        void onPalette(Map<String, String> palette);
+
+        /**
+         * @param index 该层在 structure 中的下标，从 0 开始连续递增
+         */
+        void onLayer(int index, StructureBuilder.VbsLayer layer);
+    }
 }
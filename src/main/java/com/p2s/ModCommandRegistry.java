@@ -8,10 +8,20 @@ import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.commands.SharedSuggestionProvider;
+import net.minecraft.commands.arguments.TemplateMirrorArgument;
+import net.minecraft.commands.arguments.TemplateRotationArgument;
 import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
 import net.minecraft.network.chat.Component;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.Mirror;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public final class ModCommandRegistry {
     private ModCommandRegistry() {
@@ -21,6 +31,9 @@ public final class ModCommandRegistry {
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
             var p2sCommand = Commands.literal("p2s")
                     .requires(source -> source.hasPermission(2))
+                    .then(Commands.literal("estimate")
+                            .then(Commands.argument("target", StringArgumentType.greedyString())
+                                    .executes(ctx -> estimate(ctx.getSource(), StringArgumentType.getString(ctx, "target")))))
                     .then(Commands.argument("x", IntegerArgumentType.integer())
                             .then(Commands.argument("y", IntegerArgumentType.integer())
                                     .then(Commands.argument("z", IntegerArgumentType.integer())
@@ -53,7 +66,77 @@ public final class ModCommandRegistry {
                                     .then(Commands.argument("x", IntegerArgumentType.integer())
                                             .then(Commands.argument("y", IntegerArgumentType.integer())
                                                     .then(Commands.argument("z", IntegerArgumentType.integer())
-                                                            .executes(ModCommandRegistry::loadSaved)))))
+                                                            .executes(ctx -> loadSaved(ctx, PlanTransform.IDENTITY))
+                                                            .then(Commands.argument("rotation", TemplateRotationArgument.templateRotation())
+                                                                    .executes(ctx -> loadSaved(ctx, new PlanTransform(
+                                                                            TemplateRotationArgument.getRotation(ctx, "rotation"), Mirror.NONE)))
+                                                                    .then(Commands.argument("mirror", TemplateMirrorArgument.templateMirror())
+                                                                            .executes(ctx -> loadSaved(ctx, new PlanTransform(
+                                                                                    TemplateRotationArgument.getRotation(ctx, "rotation"),
+                                                                                    TemplateMirrorArgument.getMirror(ctx, "mirror"))))))))))
+            );
+
+            dispatcher.register(
+                    Commands.literal("p2sundo")
+                            .requires(source -> source.hasPermission(2))
+                            .then(Commands.argument("count", IntegerArgumentType.integer(1, 50))
+                                    .executes(ctx -> undo(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "count"))))
+                            .executes(ctx -> undo(ctx.getSource(), 1))
+            );
+
+            dispatcher.register(
+                    Commands.literal("p2sstats")
+                            .requires(source -> source.hasPermission(2))
+                            .then(Commands.literal("reset").executes(ctx -> {
+                                PipelineMetrics.reset();
+                                ctx.getSource().sendSuccess(() -> Component.literal("P2S stats reset"), false);
+                                return 1;
+                            }))
+                            .executes(ctx -> stats(ctx.getSource()))
+            );
+
+            dispatcher.register(
+                    Commands.literal("p2scache")
+                            .requires(source -> source.hasPermission(2))
+                            .then(Commands.literal("flush").executes(ctx -> {
+                                int deleted = ResponseCache.flush();
+                                ctx.getSource().sendSuccess(() -> Component.literal("LLM cache flushed (" + deleted + " disk entries removed)"), false);
+                                return deleted;
+                            }))
+                            .executes(ctx -> cacheStats(ctx.getSource()))
+            );
+
+            dispatcher.register(
+                    Commands.literal("p2squeue")
+                            .requires(source -> source.hasPermission(2))
+                            .then(Commands.literal("top")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .executes(ctx -> moveJob(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "id"), true))))
+                            .then(Commands.literal("bottom")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .executes(ctx -> moveJob(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "id"), false))))
+                            .executes(ctx -> showQueue(ctx.getSource()))
+            );
+
+            dispatcher.register(
+                    Commands.literal("p2sbuild")
+                            .requires(source -> source.hasPermission(2))
+                            .then(Commands.literal("pause")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .executes(ctx -> controlJob(ctx.getSource(), "pause", IntegerArgumentType.getInteger(ctx, "id")))))
+                            .then(Commands.literal("resume")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .executes(ctx -> controlJob(ctx.getSource(), "resume", IntegerArgumentType.getInteger(ctx, "id")))))
+                            .then(Commands.literal("cancel")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .executes(ctx -> controlJob(ctx.getSource(), "cancel", IntegerArgumentType.getInteger(ctx, "id")))))
+                            .then(Commands.literal("mode")
+                                    .then(Commands.argument("id", IntegerArgumentType.integer(1))
+                                            .then(Commands.argument("mode", StringArgumentType.word())
+                                                    .suggests((ctx, builder) -> SharedSuggestionProvider.suggest(
+                                                            Arrays.stream(PlacementMode.values()).map(PlacementMode::id), builder))
+                                                    .executes(ctx -> setJobMode(ctx.getSource(), IntegerArgumentType.getInteger(ctx, "id"),
+                                                            StringArgumentType.getString(ctx, "mode"))))))
             );
 
             dispatcher.register(
@@ -97,25 +180,45 @@ public final class ModCommandRegistry {
         ServerLevel world = source.getLevel();
         BlockPos origin = new BlockPos(x, y, z);
 
+        if (RequestScheduler.saturated()) {
+            source.sendFailure(Component.literal("Too many LLM requests pending, try again later (" + RequestScheduler.report() + ")"));
+            return 0;
+        }
         source.sendSuccess(() -> Component.literal("Requesting structure from AI..."), false);
+        // 在等待模型的同时按预设占地预加载目标区域，构建结束或失败后释放
+        ChunkTickets preload = ChunkTickets.preload(world, origin, ModConfig.currentSystemPrompt());
 
-        LLMService.requestStructure(prompt).thenAccept(result -> {
-            MinecraftServer server = source.getServer();
-            server.execute(() -> {
-                try {
-                    String savedName = ScriptStorage.save(prompt, result.script(), result.fullMessage(), null);
-                    StructureBuilder.build(world, origin, result.script());
-                    source.sendSuccess(() -> Component.literal("Build completed (saved as " + savedName + ")"), false);
-                } catch (Exception e) {
-                    source.sendFailure(Component.literal("Build failed: " + e.getMessage()));
-                    P2SMod.LOGGER.error("Build failed", e);
+        MinecraftServer server = source.getServer();
+        if (ModConfig.LLM_STREAM) {
+            StreamingBuild build = new StreamingBuild(source, origin, prompt, preload);
+            LLMService.streamStructure(prompt, build).whenComplete((result, ex) -> {
+                if (ex == null) {
+                    build.finish(result);
+                } else {
+                    server.execute(() -> build.fail(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex));
                 }
             });
+            return 1;
+        }
+        LLMService.requestStructure(prompt).thenAccept(result -> {
+            CompletableFuture<Prepared> prepared = CompletableFuture.supplyAsync(() -> {
+                String savedName = ScriptStorage.save(prompt, result.script(), result.fullMessage(), null);
+                VoxelPlan plan = StructureBuilder.compile(origin, result.script());
+                ScriptStorage.Entry entry = ScriptStorage.load(savedName);
+                if (entry != null) {
+                    cacheTemplate(server, savedName, TemplateCache.toTag(plan, origin, TemplateCache.sourceHash(entry)));
+                }
+                return new Prepared(savedName, plan);
+            }, StructureBuilder.compileExecutor());
+            enqueueWhenReady(source, world, prepared, BuildJob.Priority.GENERATE, preload,
+                    p -> "Structure received, building (saved as " + p.name() + ")...",
+                    (p, job) -> "Build completed (saved as " + p.name() + ", " + job.placed() + " blocks, " + job.skipped() + " unchanged)");
         }).exceptionally(ex -> {
-            MinecraftServer server = source.getServer();
             server.execute(() -> {
-                source.sendFailure(Component.literal("Request or parse failed: " + ex.getMessage()));
-                P2SMod.LOGGER.error("LLM generation failed", ex);
+                preload.release();
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                source.sendFailure(Component.literal("Request or parse failed: " + cause.getMessage()));
+                P2SMod.LOGGER.error("LLM generation failed", cause);
             });
             return null;
         });
@@ -123,6 +226,175 @@ public final class ModCommandRegistry {
         return 1;
     }
 
+    /**
+     * 编译在工作线程完成后，回到服务端主线程只做入队；主线程不参与解析、调色板解析或体素展开。
+     * {@code preload} 为提前加的 chunk 票据（可为 null），在构建结束或失败时释放。
+     */
+    private static void enqueueWhenReady(CommandSourceStack source, ServerLevel world, CompletableFuture<Prepared> prepared,
+                                         BuildJob.Priority priority, ChunkTickets preload,
+                                         Function<Prepared, String> queuedMessage, BiFunction<Prepared, BuildJob, String> doneMessage) {
+        MinecraftServer server = source.getServer();
+        Runnable release = preload == null ? () -> { } : preload::release;
+        prepared.whenComplete((p, ex) -> server.execute(() -> {
+            if (ex != null) {
+                release.run();
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                source.sendFailure(Component.literal("Build failed: " + cause.getMessage()));
+                P2SMod.LOGGER.error("Build failed", cause);
+                return;
+            }
+            BuildScheduler.enqueue(new BuildJob(p.name(), source.getTextName(), priority, world, p.plan(), true,
+                    job -> {
+                        release.run();
+                        source.sendSuccess(() -> Component.literal(doneMessage.apply(p, job)), false);
+                    },
+                    e -> {
+                        release.run();
+                        source.sendFailure(Component.literal("Build failed: " + e.getMessage()));
+                    }));
+            source.sendSuccess(() -> Component.literal(queuedMessage.apply(p)), false);
+        }));
+    }
+
+    /**
+     * 估算存档脚本（按名称）或新 prompt 的构建开销，不放置任何方块。以执行者所在位置作为原点计算高度裁剪。
+     */
+    private static int estimate(CommandSourceStack source, String target) {
+        MinecraftServer server = source.getServer();
+        ServerLevel world = source.getLevel();
+        BlockPos origin = BlockPos.containing(source.getPosition());
+
+        CompletableFuture.supplyAsync(() -> {
+                    if (!target.matches("[A-Za-z0-9_-]+")) {
+                        return null;
+                    }
+                    ScriptStorage.Entry entry = ScriptStorage.load(target);
+                    if (entry == null) {
+                        return null;
+                    }
+                    // 同名存档存在但无法解析时直接报错，不当作 prompt 去请求模型
+                    StructureBuilder.VbsScript script = entry.toScript();
+                    if (script == null) {
+                        throw new IllegalArgumentException("Saved script invalid or empty");
+                    }
+                    return script;
+                }, StructureBuilder.compileExecutor())
+                .thenCompose(saved -> {
+                    if (saved != null) {
+                        return CompletableFuture.completedFuture(saved);
+                    }
+                    server.execute(() -> source.sendSuccess(() -> Component.literal("No saved script named '" + target + "', requesting structure from AI..."), false));
+                    return LLMService.requestStructure(target).thenApply(result -> {
+                        String savedName = ScriptStorage.save(target, result.script(), result.fullMessage(), null);
+                        server.execute(() -> source.sendSuccess(() -> Component.literal("Generated script saved as " + savedName + " (not built)"), false));
+                        return result.script();
+                    });
+                })
+                .thenApplyAsync(script -> BuildEstimate.of(origin, script, world), StructureBuilder.compileExecutor())
+                .whenComplete((estimate, ex) -> server.execute(() -> {
+                    if (ex != null) {
+                        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                        source.sendFailure(Component.literal("Estimate failed: " + cause.getMessage()));
+                        P2SMod.LOGGER.error("Estimate failed", cause);
+                        return;
+                    }
+                    source.sendSuccess(() -> Component.literal("Estimate: " + estimate.describe()), false);
+                    String violation = estimate.limitViolation();
+                    if (violation == null) {
+                        source.sendSuccess(() -> Component.literal("Within configured limits"), false);
+                    } else {
+                        source.sendFailure(Component.literal("Would be rejected: " + violation));
+                    }
+                }));
+        return 1;
+    }
+
+    private static int showQueue(CommandSourceStack source) {
+        var active = BuildScheduler.active();
+        var waiting = BuildScheduler.waiting();
+        if (active.isEmpty() && waiting.isEmpty()) {
+            source.sendSuccess(() -> Component.literal("Build queue is empty"), false);
+            return 0;
+        }
+        source.sendSuccess(() -> Component.literal("Build queue: " + active.size() + " active (max " + ModConfig.BUILD_MAX_ACTIVE
+                + ", " + ModConfig.BUILD_MAX_ACTIVE_PER_PLAYER + " per player), " + waiting.size() + " waiting"), false);
+        active.forEach(job -> source.sendSuccess(() -> Component.literal(describeJob("active", job)), false));
+        for (int i = 0; i < waiting.size(); i++) {
+            String state = (waiting.get(i).isPaused() ? "paused " : "waiting ") + (i + 1);
+            BuildJob job = waiting.get(i);
+            source.sendSuccess(() -> Component.literal(describeJob(state, job)), false);
+        }
+        return active.size() + waiting.size();
+    }
+
+    private static String describeJob(String state, BuildJob job) {
+        if (job.isSettling()) {
+            state = "settling";
+        }
+        return String.format("#%d [%s] %s | %s | %s | %s | %d blocks, %.0f%%%s",
+                job.id(), state, job.label(), job.owner(), job.priority(), job.placementMode().id(),
+                job.plan().blockCount(), job.progress() * 100,
+                job.resumed() && job.recordsUndo() ? " | resumed after restart, undo covers only blocks placed since" : "");
+    }
+
+    private static int controlJob(CommandSourceStack source, String action, int id) {
+        boolean ok = switch (action) {
+            case "pause" -> BuildScheduler.pause(id);
+            case "resume" -> BuildScheduler.resume(id);
+            default -> BuildScheduler.cancel(id);
+        };
+        if (!ok) {
+            source.sendFailure(Component.literal("Cannot " + action + " build job #" + id));
+            return 0;
+        }
+        source.sendSuccess(() -> Component.literal("Build job #" + id + ": " + action + (action.equals("cancel") ? "led" : "d")), false);
+        return 1;
+    }
+
+    private static int setJobMode(CommandSourceStack source, int id, String name) {
+        PlacementMode mode = PlacementMode.byName(name, null);
+        if (mode == null) {
+            source.sendFailure(Component.literal("Unknown placement mode: " + name + " (vanilla, fast, settle)"));
+            return 0;
+        }
+        if (!BuildScheduler.setPlacementMode(id, mode)) {
+            source.sendFailure(Component.literal("No build job #" + id));
+            return 0;
+        }
+        source.sendSuccess(() -> Component.literal("Build job #" + id + " now places in " + mode.id() + " mode"), false);
+        return 1;
+    }
+
+    private static int moveJob(CommandSourceStack source, int id, boolean toFront) {
+        if (!BuildScheduler.move(id, toFront)) {
+            source.sendFailure(Component.literal("No waiting build job #" + id));
+            return 0;
+        }
+        source.sendSuccess(() -> Component.literal("Moved build job #" + id + (toFront ? " to the front" : " to the back")), false);
+        return 1;
+    }
+
+    private static int stats(CommandSourceStack source) {
+        var lines = PipelineMetrics.report();
+        source.sendSuccess(() -> Component.literal(RequestScheduler.report()), false);
+        EndpointRouter.report().forEach(line -> source.sendSuccess(() -> Component.literal(line), false));
+        if (lines.isEmpty()) {
+            source.sendSuccess(() -> Component.literal("No P2S timings recorded yet"), false);
+            return 0;
+        }
+        source.sendSuccess(() -> Component.literal("P2S timings (last " + PipelineMetrics.WINDOW + " samples per phase, "
+                + BuildScheduler.pending() + " build job(s) pending):"), false);
+        lines.forEach(line -> source.sendSuccess(() -> Component.literal(line), false));
+        return lines.size();
+    }
+
+    private static int cacheStats(CommandSourceStack source) {
+        var lines = ResponseCache.report();
+        source.sendSuccess(() -> Component.literal("P2S LLM cache:"), false);
+        lines.forEach(line -> source.sendSuccess(() -> Component.literal(line), false));
+        return lines.size();
+    }
+
     private static int list(CommandSourceStack source, int limit) {
         var entries = ScriptStorage.list(limit);
         if (entries.isEmpty()) {
@@ -139,28 +411,81 @@ public final class ModCommandRegistry {
         return entries.size();
     }
 
-    private static int loadSaved(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+    private static int loadSaved(CommandContext<CommandSourceStack> ctx, PlanTransform transform) throws CommandSyntaxException {
         String name = StringArgumentType.getString(ctx, "name");
         int x = IntegerArgumentType.getInteger(ctx, "x");
         int y = IntegerArgumentType.getInteger(ctx, "y");
         int z = IntegerArgumentType.getInteger(ctx, "z");
 
-        ScriptStorage.Entry entry = ScriptStorage.load(name);
-        if (entry == null) {
-            ctx.getSource().sendFailure(Component.literal("No saved script: " + name));
+        CommandSourceStack source = ctx.getSource();
+        ServerLevel world = source.getLevel();
+        MinecraftServer server = source.getServer();
+        BlockPos origin = new BlockPos(x, y, z);
+        CompletableFuture<Prepared> prepared = CompletableFuture.supplyAsync(() -> {
+            ScriptStorage.Entry entry = ScriptStorage.load(name);
+            if (entry == null) {
+                throw new IllegalArgumentException("No saved script: " + name);
+            }
+            String hash = TemplateCache.sourceHash(entry);
+            CompoundTag cached = TemplateCache.read(name, hash);
+            if (cached != null) {
+                TemplateCache.register(server, name, cached);
+                // 缓存生成时的限制检查基于另一个放置点且未变换，限制也可能已经调低：对还原的计划重新检查
+                VoxelPlan plan = TemplateCache.toPlan(cached, origin, transform);
+                BuildEstimate.requireWithinLimits(plan);
+                return new Prepared(name, plan);
+            }
+            StructureBuilder.VbsScript script = entry.toScript();
+            if (script == null) {
+                throw new IllegalArgumentException("Saved script invalid or empty");
+            }
+            // 缓存只保存未变换的结果；带变换时从刚生成的模板还原，不必再编译一次
+            VoxelPlan plan = StructureBuilder.compile(origin, script);
+            CompoundTag tag = TemplateCache.toTag(plan, origin, hash);
+            cacheTemplate(server, name, tag);
+            if (transform.isIdentity()) {
+                return new Prepared(name, plan);
+            }
+            // 旋转后涉及的 chunk 可能不同
+            VoxelPlan transformed = TemplateCache.toPlan(tag, origin, transform);
+            BuildEstimate.requireWithinLimits(transformed);
+            return new Prepared(name, transformed);
+        }, StructureBuilder.compileExecutor());
+        enqueueWhenReady(source, world, prepared, BuildJob.Priority.LOAD, null,
+                p -> "Queued saved script: " + name,
+                (p, job) -> "Built saved script: " + name + " (" + job.placed() + " blocks, " + job.skipped() + " unchanged)");
+        return 1;
+    }
+
+    /**
+     * 写入模板缓存并注册为结构模板。两者都是写盘，在调用方的工作线程上完成。
+     */
+    static void cacheTemplate(MinecraftServer server, String name, CompoundTag tag) {
+        TemplateCache.write(name, tag);
+        TemplateCache.register(server, name, tag);
+    }
+
+    private static int undo(CommandSourceStack source, int count) {
+        var snapshots = UndoHistory.pop(count);
+        if (snapshots.isEmpty()) {
+            source.sendFailure(Component.literal("Nothing to undo"));
             return 0;
         }
-        StructureBuilder.VbsScript script = entry.toScript();
-        if (script == null) {
-            ctx.getSource().sendFailure(Component.literal("Saved script invalid or empty"));
-            return 0;
+        MinecraftServer server = source.getServer();
+        // 最新的先还原，保证重叠区域最终回到最早的状态
+        for (UndoHistory.Snapshot snapshot : snapshots) {
+            ServerLevel world = server.getLevel(snapshot.dimension());
+            if (world == null) {
+                source.sendFailure(Component.literal("Dimension not loaded for undo: " + snapshot.dimension().location()));
+                continue;
+            }
+            String label = "undo " + snapshot.label();
+            BuildScheduler.enqueue(new BuildJob(label, source.getTextName(), BuildJob.Priority.LOAD, world, snapshot.toPlan(), false,
+                    job -> source.sendSuccess(() -> Component.literal("Undo completed: " + snapshot.label() + " (" + job.placed() + " blocks restored)"), false),
+                    e -> source.sendFailure(Component.literal("Undo failed: " + e.getMessage()))));
         }
-
-        ServerLevel world = ctx.getSource().getLevel();
-        BlockPos origin = new BlockPos(x, y, z);
-        StructureBuilder.build(world, origin, script);
-        ctx.getSource().sendSuccess(() -> Component.literal("Built saved script: " + name), false);
-        return 1;
+        source.sendSuccess(() -> Component.literal("Undoing " + snapshots.size() + " build(s)..."), false);
+        return snapshots.size();
     }
 
     private static int listPrompts(CommandSourceStack source) {
@@ -192,4 +517,7 @@ public final class ModCommandRegistry {
         source.sendSuccess(() -> Component.literal("Current prompt: " + current), false);
         return 1;
     }
+
+    private record Prepared(String name, VoxelPlan plan) {
+    }
 }
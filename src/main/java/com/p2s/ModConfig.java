@@ -10,7 +10,9 @@ import net.fabricmc.loader.api.FabricLoader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class ModConfig {
@@ -21,6 +23,35 @@ public final class ModConfig {
     private static final String DEFAULT_MODEL = "gpt-4o-mini";
     private static final int DEFAULT_TIMEOUT_SECONDS = 30;
     private static final String DEFAULT_PROMPT_NAME = "default";
+    private static final int DEFAULT_BUILD_BLOCKS_PER_TICK = 20000;
+    private static final int DEFAULT_BUILD_MILLIS_PER_TICK = 15;
+    private static final boolean DEFAULT_BUILD_SKIP_UNCHANGED = true;
+    private static final int DEFAULT_UNDO_MEMORY_MB = 64;
+    private static final int DEFAULT_UNDO_MAX_ENTRIES = 16;
+    private static final int DEFAULT_MAX_BLOCKS_PER_BUILD = 2_000_000;
+    private static final int DEFAULT_MAX_BUILD_SPAN = 512;
+    private static final int DEFAULT_MAX_CHUNKS_PER_BUILD = 1024;
+    // 编译线程池（StructureBuilder）占核数的一半，体素展开默认用剩下的一半，两者合计不超过核数
+    private static final int DEFAULT_COMPILE_PARALLELISM = Math.max(1,
+            Runtime.getRuntime().availableProcessors() - Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int DEFAULT_BUILD_MAX_ACTIVE = 4;
+    private static final int DEFAULT_BUILD_MAX_ACTIVE_PER_PLAYER = 1;
+    private static final PlacementMode DEFAULT_BUILD_PLACEMENT_MODE = PlacementMode.SETTLE;
+    private static final int DEFAULT_BUILD_SETTLE_MAX_BLOCKS = 262_144;
+    private static final int DEFAULT_BUILD_PRELOAD_FOOTPRINT = 32;
+    private static final boolean DEFAULT_LLM_STREAM = true;
+    private static final boolean DEFAULT_LLM_CACHE = true;
+    private static final int DEFAULT_LLM_CACHE_MEMORY_ENTRIES = 128;
+    private static final int DEFAULT_LLM_CACHE_DISK_ENTRIES = 1024;
+    private static final int DEFAULT_LLM_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_LLM_QUEUE_SIZE = 16;
+    private static final int DEFAULT_LLM_RATE_PER_MINUTE = 30;
+    private static final int DEFAULT_LLM_RATE_BURST = 5;
+    private static final int DEFAULT_LLM_HEDGE_DELAY_MS = 0;
+    private static final int DEFAULT_LLM_ENDPOINT_COOLDOWN_SECONDS = 30;
+    private static final int DEFAULT_LLM_RETRIES = 2;
+    private static final int DEFAULT_LLM_RETRY_BASE_MS = 500;
+    private static final int DEFAULT_LLM_REPROMPT_ATTEMPTS = 1;
     public static final String DEFAULT_SYSTEM_PROMPT = """
             You are a Minecraft Architect. 
             Target: Generate a structure based on user prompt.
@@ -36,11 +67,15 @@ public final class ModConfig {
             1. "fill": Fill a solid cuboid.
             2. "frame": Create hollow walls/box (faces only) for the cuboid region.
             3. "set": Place blocks at specific list of coordinates "at": [[x,y,z],...].
+            4. "line": Straight (also diagonal) line of blocks from "from" to "to".
+            5. "sphere": Ball at "center": [x,y,z] with "radius": n. "hollow": true keeps a 1-block shell; "half": "upper" makes a dome.
+            6. "cylinder": Disc of "radius" at base "center", extruded "height" blocks along "axis" ("y" default, or "x"/"z"). "hollow": true keeps walls only.
+            7. "replace": Inside the "from"/"to" box, change blocks already placed with palette key "target" to "block".
             Optional per-action field: "facing": "north|south|east|west|up|down" to set block facing when supported.
             Rules:
             - Coordinates are relative to 0,0,0.
             - Use standard Minecraft Java Edition block IDs (e.g., minecraft:oak_log).
-            - Optimize: Use "fill" and "frame" for large areas to save tokens.
+            - Optimize: Use "fill", "frame", "line", "sphere" and "cylinder" instead of listing blocks to save tokens.
             """;
 
     public static volatile String API_URL;
@@ -49,6 +84,35 @@ public final class ModConfig {
     public static volatile int HTTP_TIMEOUT_SECONDS;
     public static volatile Map<String, String> PROMPTS;
     public static volatile String ACTIVE_PROMPT_NAME;
+    public static volatile int BUILD_BLOCKS_PER_TICK;
+    public static volatile int BUILD_MILLIS_PER_TICK;
+    public static volatile boolean BUILD_SKIP_UNCHANGED;
+    public static volatile int UNDO_MEMORY_MB;
+    public static volatile int UNDO_MAX_ENTRIES;
+    public static volatile int MAX_BLOCKS_PER_BUILD;
+    public static volatile int MAX_BUILD_SPAN;
+    public static volatile int MAX_CHUNKS_PER_BUILD;
+    // 体素展开线程池在首次编译时按此值创建，修改后需重启服务端
+    public static volatile int COMPILE_PARALLELISM;
+    public static volatile int BUILD_MAX_ACTIVE;
+    public static volatile int BUILD_MAX_ACTIVE_PER_PLAYER;
+    public static volatile PlacementMode BUILD_PLACEMENT_MODE;
+    public static volatile int BUILD_SETTLE_MAX_BLOCKS;
+    public static volatile int BUILD_PRELOAD_FOOTPRINT;
+    public static volatile boolean LLM_STREAM;
+    public static volatile boolean LLM_CACHE;
+    public static volatile int LLM_CACHE_MEMORY_ENTRIES;
+    public static volatile int LLM_CACHE_DISK_ENTRIES;
+    public static volatile int LLM_MAX_IN_FLIGHT;
+    public static volatile int LLM_QUEUE_SIZE;
+    public static volatile int LLM_RATE_PER_MINUTE;
+    public static volatile int LLM_RATE_BURST;
+    public static volatile List<Endpoint> ENDPOINTS;
+    public static volatile int LLM_HEDGE_DELAY_MS;
+    public static volatile int LLM_ENDPOINT_COOLDOWN_SECONDS;
+    public static volatile int LLM_RETRIES;
+    public static volatile int LLM_RETRY_BASE_MS;
+    public static volatile int LLM_REPROMPT_ATTEMPTS;
 
     static {
         apply(loadFromFile());
@@ -65,6 +129,33 @@ public final class ModConfig {
         defaults.httpTimeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
         defaults.prompts = defaultPrompts();
         defaults.activePrompt = DEFAULT_PROMPT_NAME;
+        defaults.buildBlocksPerTick = DEFAULT_BUILD_BLOCKS_PER_TICK;
+        defaults.buildMillisPerTick = DEFAULT_BUILD_MILLIS_PER_TICK;
+        defaults.buildSkipUnchanged = DEFAULT_BUILD_SKIP_UNCHANGED;
+        defaults.undoMemoryMb = DEFAULT_UNDO_MEMORY_MB;
+        defaults.undoMaxEntries = DEFAULT_UNDO_MAX_ENTRIES;
+        defaults.maxBlocksPerBuild = DEFAULT_MAX_BLOCKS_PER_BUILD;
+        defaults.maxBuildSpan = DEFAULT_MAX_BUILD_SPAN;
+        defaults.maxChunksPerBuild = DEFAULT_MAX_CHUNKS_PER_BUILD;
+        defaults.compileParallelism = DEFAULT_COMPILE_PARALLELISM;
+        defaults.buildMaxActive = DEFAULT_BUILD_MAX_ACTIVE;
+        defaults.buildMaxActivePerPlayer = DEFAULT_BUILD_MAX_ACTIVE_PER_PLAYER;
+        defaults.buildPlacementMode = DEFAULT_BUILD_PLACEMENT_MODE.id();
+        defaults.buildSettleMaxBlocks = DEFAULT_BUILD_SETTLE_MAX_BLOCKS;
+        defaults.buildPreloadFootprint = DEFAULT_BUILD_PRELOAD_FOOTPRINT;
+        defaults.llmStream = DEFAULT_LLM_STREAM;
+        defaults.llmCache = DEFAULT_LLM_CACHE;
+        defaults.llmCacheMemoryEntries = DEFAULT_LLM_CACHE_MEMORY_ENTRIES;
+        defaults.llmCacheDiskEntries = DEFAULT_LLM_CACHE_DISK_ENTRIES;
+        defaults.llmMaxInFlight = DEFAULT_LLM_MAX_IN_FLIGHT;
+        defaults.llmQueueSize = DEFAULT_LLM_QUEUE_SIZE;
+        defaults.llmRatePerMinute = DEFAULT_LLM_RATE_PER_MINUTE;
+        defaults.llmRateBurst = DEFAULT_LLM_RATE_BURST;
+        defaults.llmHedgeDelayMs = DEFAULT_LLM_HEDGE_DELAY_MS;
+        defaults.llmEndpointCooldownSeconds = DEFAULT_LLM_ENDPOINT_COOLDOWN_SECONDS;
+        defaults.llmRetries = DEFAULT_LLM_RETRIES;
+        defaults.llmRetryBaseMs = DEFAULT_LLM_RETRY_BASE_MS;
+        defaults.llmRepromptAttempts = DEFAULT_LLM_REPROMPT_ATTEMPTS;
 
         try {
             if (!Files.exists(CONFIG_PATH)) {
@@ -116,6 +207,35 @@ public final class ModConfig {
         return defaultValue;
     }
 
+    /**
+     * 同 {@link #pickEnvOrConfigInt}，但 0 是有效值（用于"0 表示关闭"的选项）。
+     */
+    private static int pickEnvOrConfigIntOrZero(String envKey, Integer configValue, int defaultValue) {
+        String env = System.getenv(envKey);
+        if (env != null && !env.isBlank()) {
+            try {
+                return Math.max(0, Integer.parseInt(env.trim()));
+            } catch (NumberFormatException ignored) {
+                P2SMod.LOGGER.warn("环境变量 {} 不是有效数字，将使用配置或默认值", envKey);
+            }
+        }
+        if (configValue != null && configValue >= 0) {
+            return configValue;
+        }
+        return defaultValue;
+    }
+
+    private static boolean pickEnvOrConfigBool(String envKey, Boolean configValue, boolean defaultValue) {
+        String env = System.getenv(envKey);
+        if (env != null && !env.isBlank()) {
+            return Boolean.parseBoolean(env.trim());
+        }
+        if (configValue != null) {
+            return configValue;
+        }
+        return defaultValue;
+    }
+
     private static String pickPromptName(String envKey, String configName, Map<String, String> prompts) {
         String env = System.getenv(envKey);
         if (env != null && !env.isBlank() && prompts.containsKey(env.trim())) {
@@ -200,6 +320,60 @@ public final class ModConfig {
         PROMPTS = new LinkedHashMap<>(file.prompts == null ? defaultPrompts() : file.prompts);
         ensureDefaultPromptEntry(PROMPTS);
         ACTIVE_PROMPT_NAME = pickPromptName("P2S_PROMPT", file.activePrompt, PROMPTS);
+        BUILD_BLOCKS_PER_TICK = pickEnvOrConfigInt("P2S_BUILD_BLOCKS_PER_TICK", file.buildBlocksPerTick, DEFAULT_BUILD_BLOCKS_PER_TICK);
+        BUILD_MILLIS_PER_TICK = pickEnvOrConfigInt("P2S_BUILD_MILLIS_PER_TICK", file.buildMillisPerTick, DEFAULT_BUILD_MILLIS_PER_TICK);
+        BUILD_SKIP_UNCHANGED = pickEnvOrConfigBool("P2S_BUILD_SKIP_UNCHANGED", file.buildSkipUnchanged, DEFAULT_BUILD_SKIP_UNCHANGED);
+        UNDO_MEMORY_MB = pickEnvOrConfigInt("P2S_UNDO_MEMORY_MB", file.undoMemoryMb, DEFAULT_UNDO_MEMORY_MB);
+        UNDO_MAX_ENTRIES = pickEnvOrConfigInt("P2S_UNDO_MAX_ENTRIES", file.undoMaxEntries, DEFAULT_UNDO_MAX_ENTRIES);
+        MAX_BLOCKS_PER_BUILD = pickEnvOrConfigInt("P2S_MAX_BLOCKS_PER_BUILD", file.maxBlocksPerBuild, DEFAULT_MAX_BLOCKS_PER_BUILD);
+        MAX_BUILD_SPAN = pickEnvOrConfigInt("P2S_MAX_BUILD_SPAN", file.maxBuildSpan, DEFAULT_MAX_BUILD_SPAN);
+        MAX_CHUNKS_PER_BUILD = pickEnvOrConfigInt("P2S_MAX_CHUNKS_PER_BUILD", file.maxChunksPerBuild, DEFAULT_MAX_CHUNKS_PER_BUILD);
+        // 环境变量不经过正数检查；ForkJoinPool 只接受 [1, 32767]，越界会让 Voxelizer 初始化失败
+        COMPILE_PARALLELISM = Math.max(1, Math.min(0x7fff,
+                pickEnvOrConfigInt("P2S_COMPILE_PARALLELISM", file.compileParallelism, DEFAULT_COMPILE_PARALLELISM)));
+        BUILD_MAX_ACTIVE = pickEnvOrConfigInt("P2S_BUILD_MAX_ACTIVE", file.buildMaxActive, DEFAULT_BUILD_MAX_ACTIVE);
+        BUILD_MAX_ACTIVE_PER_PLAYER = pickEnvOrConfigInt("P2S_BUILD_MAX_ACTIVE_PER_PLAYER", file.buildMaxActivePerPlayer, DEFAULT_BUILD_MAX_ACTIVE_PER_PLAYER);
+        BUILD_PLACEMENT_MODE = PlacementMode.byName(
+                pickEnvOrConfig("P2S_BUILD_PLACEMENT_MODE", file.buildPlacementMode, DEFAULT_BUILD_PLACEMENT_MODE.id()), DEFAULT_BUILD_PLACEMENT_MODE);
+        BUILD_SETTLE_MAX_BLOCKS = pickEnvOrConfigInt("P2S_BUILD_SETTLE_MAX_BLOCKS", file.buildSettleMaxBlocks, DEFAULT_BUILD_SETTLE_MAX_BLOCKS);
+        BUILD_PRELOAD_FOOTPRINT = pickEnvOrConfigInt("P2S_BUILD_PRELOAD_FOOTPRINT", file.buildPreloadFootprint, DEFAULT_BUILD_PRELOAD_FOOTPRINT);
+        LLM_STREAM = pickEnvOrConfigBool("P2S_LLM_STREAM", file.llmStream, DEFAULT_LLM_STREAM);
+        LLM_CACHE = pickEnvOrConfigBool("P2S_LLM_CACHE", file.llmCache, DEFAULT_LLM_CACHE);
+        LLM_CACHE_MEMORY_ENTRIES = pickEnvOrConfigInt("P2S_LLM_CACHE_MEMORY_ENTRIES", file.llmCacheMemoryEntries, DEFAULT_LLM_CACHE_MEMORY_ENTRIES);
+        LLM_CACHE_DISK_ENTRIES = pickEnvOrConfigInt("P2S_LLM_CACHE_DISK_ENTRIES", file.llmCacheDiskEntries, DEFAULT_LLM_CACHE_DISK_ENTRIES);
+        LLM_MAX_IN_FLIGHT = pickEnvOrConfigInt("P2S_LLM_MAX_IN_FLIGHT", file.llmMaxInFlight, DEFAULT_LLM_MAX_IN_FLIGHT);
+        LLM_QUEUE_SIZE = pickEnvOrConfigInt("P2S_LLM_QUEUE_SIZE", file.llmQueueSize, DEFAULT_LLM_QUEUE_SIZE);
+        LLM_RATE_PER_MINUTE = pickEnvOrConfigIntOrZero("P2S_LLM_RATE_PER_MINUTE", file.llmRatePerMinute, DEFAULT_LLM_RATE_PER_MINUTE);
+        LLM_RATE_BURST = pickEnvOrConfigInt("P2S_LLM_RATE_BURST", file.llmRateBurst, DEFAULT_LLM_RATE_BURST);
+        ENDPOINTS = endpoints(file.endpoints);
+        LLM_HEDGE_DELAY_MS = pickEnvOrConfigIntOrZero("P2S_LLM_HEDGE_DELAY_MS", file.llmHedgeDelayMs, DEFAULT_LLM_HEDGE_DELAY_MS);
+        LLM_ENDPOINT_COOLDOWN_SECONDS = pickEnvOrConfigIntOrZero("P2S_LLM_ENDPOINT_COOLDOWN_SECONDS", file.llmEndpointCooldownSeconds, DEFAULT_LLM_ENDPOINT_COOLDOWN_SECONDS);
+        LLM_RETRIES = pickEnvOrConfigIntOrZero("P2S_LLM_RETRIES", file.llmRetries, DEFAULT_LLM_RETRIES);
+        LLM_RETRY_BASE_MS = pickEnvOrConfigInt("P2S_LLM_RETRY_BASE_MS", file.llmRetryBaseMs, DEFAULT_LLM_RETRY_BASE_MS);
+        LLM_REPROMPT_ATTEMPTS = pickEnvOrConfigIntOrZero("P2S_LLM_REPROMPT_ATTEMPTS", file.llmRepromptAttempts, DEFAULT_LLM_REPROMPT_ATTEMPTS);
+    }
+
+    /**
+     * 配置的接口列表；未填写 apiKey/model 的接口沿用顶层的值。列表为空时只有由 apiUrl/apiKey/model 组成的一个接口。
+     */
+    private static List<Endpoint> endpoints(List<EndpointValues> configured) {
+        List<Endpoint> list = new ArrayList<>();
+        if (configured != null) {
+            for (EndpointValues v : configured) {
+                if (v == null || v.url == null || v.url.isBlank()) {
+                    continue;
+                }
+                String name = v.name == null || v.name.isBlank() ? "endpoint" + (list.size() + 1) : v.name.trim();
+                list.add(new Endpoint(name, v.url.trim(),
+                        v.apiKey == null || v.apiKey.isBlank() ? API_KEY : v.apiKey.trim(),
+                        v.model == null || v.model.isBlank() ? MODEL : v.model.trim(),
+                        v.weight == null || v.weight <= 0 ? 1 : v.weight));
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(new Endpoint("default", API_URL, API_KEY, MODEL, 1));
+        }
+        return List.copyOf(list);
     }
 
     private static class Values {
@@ -209,6 +383,48 @@ public final class ModConfig {
         Integer httpTimeoutSeconds;
         Map<String, String> prompts;
         String activePrompt;
+        Integer buildBlocksPerTick;
+        Integer buildMillisPerTick;
+        Boolean buildSkipUnchanged;
+        Integer undoMemoryMb;
+        Integer undoMaxEntries;
+        Integer maxBlocksPerBuild;
+        Integer maxBuildSpan;
+        Integer maxChunksPerBuild;
+        Integer compileParallelism;
+        Integer buildMaxActive;
+        Integer buildMaxActivePerPlayer;
+        String buildPlacementMode;
+        Integer buildSettleMaxBlocks;
+        Integer buildPreloadFootprint;
+        Boolean llmStream;
+        Boolean llmCache;
+        Integer llmCacheMemoryEntries;
+        Integer llmCacheDiskEntries;
+        Integer llmMaxInFlight;
+        Integer llmQueueSize;
+        Integer llmRatePerMinute;
+        Integer llmRateBurst;
+        List<EndpointValues> endpoints;
+        Integer llmHedgeDelayMs;
+        Integer llmEndpointCooldownSeconds;
+        Integer llmRetries;
+        Integer llmRetryBaseMs;
+        Integer llmRepromptAttempts;
+    }
+
+    private static class EndpointValues {
+        String name;
+        String url;
+        String apiKey;
+        String model;
+        Integer weight;
+    }
+
+    /**
+     * 一个 OpenAI 兼容的聊天补全接口；{@code weight} 越大分到的请求越多。
+     */
+    public record Endpoint(String name, String url, String apiKey, String model, int weight) {
     }
 
     public static String currentSystemPrompt() {
@@ -16,6 +16,9 @@ public class P2SMod implements ModInitializer {
 	@Override
 	public void onInitialize() {
 		ModCommandRegistry.register();
+		BuildScheduler.register();
+		BuildCheckpoints.register();
+		BlockIdIndex.register();
 		LOGGER.info("Prompt-to-Structure module loaded. {}", ModConfig.describeConfigSource());
 		LOGGER.info("Using API URL: {}, model: {}, timeout: {}s, prompt: {}", ModConfig.API_URL, ModConfig.MODEL, ModConfig.HTTP_TIMEOUT_SECONDS, ModConfig.activePromptName());
 	}
@@ -0,0 +1,202 @@
+package com.p2s;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 生成流水线各阶段的计时：每次计时既作为 JFR 事件提交（{@code p2s.Phase}，可用 JDK Mission Control 查看），
+ * 也写入该阶段最近 {@link #WINDOW} 次样本的滚动窗口，供 /p2sstats 计算分位数与吞吐量。
+ */
+public final class PipelineMetrics {
+    static final int WINDOW = 1024;
+    private static final Map<Phase, Window> WINDOWS = new EnumMap<>(Phase.class);
+
+    static {
+        for (Phase phase : Phase.values()) {
+            WINDOWS.put(phase, new Window());
+        }
+    }
+
+    private PipelineMetrics() {
+    }
+
+    public enum Phase {
+        /** 一次完整的 LLM HTTP 请求（含读取响应体）；单位为响应字符数。 */
+        LLM("llm", "chars"),
+        /** VBS JSON 解析；单位为输入字符数。 */
+        PARSE("parse", "chars"),
+        /** 调色板方块 ID 解析（含模糊匹配）；单位为调色板条目数。 */
+        PALETTE("palette", "entries"),
+        /** 动作光栅化为 VoxelPlan；单位为方块数。 */
+        VOXELIZE("voxelize", "blocks"),
+        /** 一次 BulkPlacer.flush：section 写入、光照检查提交与区块同步；单位为实际写入的方块数。 */
+        PLACE("place", "blocks"),
+        /** 单个 chunk 的高度图重算与区块包发送。 */
+        CHUNK_SYNC("chunk.sync", "chunks"),
+        /** 一个服务端 tick 内构建任务占用的时间；单位为本 tick 放置的方块数。 */
+        BUILD_TICK("build.tick", "blocks");
+
+        private final String id;
+        private final String unit;
+
+        Phase(String id, String unit) {
+            this.id = id;
+            this.unit = unit;
+        }
+
+        public String id() {
+            return id;
+        }
+    }
+
+    /**
+     * 开始计时；应配合 try-with-resources 使用。
+     */
+    public static Timer start(Phase phase) {
+        return new Timer(phase);
+    }
+
+    public static void reset() {
+        for (Window window : WINDOWS.values()) {
+            window.reset();
+        }
+    }
+
+    /**
+     * 每个有样本的阶段一行：次数、p50/p90/p99/最大耗时与窗口内吞吐量。
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            Summary s = WINDOWS.get(phase).summary();
+            if (s.samples == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder()
+                    .append(phase.id).append(": n=").append(s.samples)
+                    .append(" p50=").append(formatNanos(s.p50))
+                    .append(" p90=").append(formatNanos(s.p90))
+                    .append(" p99=").append(formatNanos(s.p99))
+                    .append(" max=").append(formatNanos(s.max));
+            if (s.units > 0 && s.totalNanos > 0) {
+                line.append(String.format(" %.0f %s/s", s.units * 1e9 / s.totalNanos, phase.unit));
+            }
+            if (phase == Phase.BUILD_TICK) {
+                line.append(" avg=").append(formatNanos(s.totalNanos / s.samples)).append("/tick");
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos >= 1_000_000_000L) {
+            return String.format("%.2fs", nanos / 1e9);
+        }
+        if (nanos >= 1_000_000L) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.0fus", nanos / 1e3);
+    }
+
+    public static final class Timer implements AutoCloseable {
+        private final Phase phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start;
+        private long units;
+
+        private Timer(Phase phase) {
+            this.phase = phase;
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * 本次计时处理的数据量（方块数、字符数等），用于计算吞吐量。
+         */
+        public void units(long units) {
+            this.units = units;
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - start;
+            WINDOWS.get(phase).record(nanos, units);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.id;
+                event.units = units;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("p2s.Phase")
+    @Label("P2S Pipeline Phase")
+    @Category("Prompt2Structure")
+    @Description("结构生成流水线中一个阶段的耗时")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Units")
+        long units;
+    }
+
+    /**
+     * 固定大小的环形样本窗口。写入来自 LLM 线程、编译线程与服务端主线程，所以方法加锁；每次写入只有几次赋值。
+     */
+    private static final class Window {
+        private final long[] nanos = new long[WINDOW];
+        private final long[] units = new long[WINDOW];
+        private int next;
+        private int size;
+
+        synchronized void record(long sampleNanos, long sampleUnits) {
+            nanos[next] = sampleNanos;
+            units[next] = sampleUnits;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+        }
+
+        synchronized void reset() {
+            next = 0;
+            size = 0;
+        }
+
+        synchronized Summary summary() {
+            if (size == 0) {
+                return new Summary(0, 0, 0, 0, 0, 0, 0);
+            }
+            long[] sorted = Arrays.copyOf(nanos, size);
+            long totalNanos = 0;
+            long totalUnits = 0;
+            for (int i = 0; i < size; i++) {
+                totalNanos += nanos[i];
+                totalUnits += units[i];
+            }
+            Arrays.sort(sorted);
+            return new Summary(size, percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                    sorted[size - 1], totalNanos, totalUnits);
+        }
+
+        private static long percentile(long[] sorted, double q) {
+            int index = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+
+    private record Summary(int samples, long p50, long p90, long p99, long max, long totalNanos, long units) {
+    }
+}
@@ -0,0 +1,33 @@
+package com.p2s;
+
+import java.util.Locale;
+
+/**
+ * 方块写入方式，在正确性与速度之间取舍。默认值来自配置，可用 {@code /p2sbuild mode} 针对单个任务修改。
+ */
+public enum PlacementMode {
+    /** 原版 setBlock，触发全部邻居与形状更新；最慢，但行为与手动放置一致。 */
+    VANILLA,
+    /** 直接写 section，不触发任何更新；沙子悬空、水不流动、红石与铁轨不连接。 */
+    FAST,
+    /** 与 FAST 相同的写入，结束后对边界与对更新敏感的方块做一次有上限的整理（{@link SettlePass}）。 */
+    SETTLE;
+
+    public String id() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 按名称解析（不区分大小写），无法识别时返回 {@code fallback}。
+     */
+    public static PlacementMode byName(String name, PlacementMode fallback) {
+        if (name != null) {
+            for (PlacementMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return fallback;
+    }
+}
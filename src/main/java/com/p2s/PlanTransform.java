@@ -0,0 +1,72 @@
+package com.p2s;
+
+import net.minecraft.core.Direction;
+import net.minecraft.world.level.block.Mirror;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * 绕放置点的水平旋转与镜像，顺序与原版结构模板一致：先镜像再旋转。
+ * 坐标变换只做整数运算；方块状态通过 {@link BlockState#mirror}/{@link BlockState#rotate} 变换，
+ * 由调用方按调色板预先算好，不在每个体素上重复。
+ */
+public record PlanTransform(Rotation rotation, Mirror mirror) {
+    public static final PlanTransform IDENTITY = new PlanTransform(Rotation.NONE, Mirror.NONE);
+
+    public boolean isIdentity() {
+        return rotation == Rotation.NONE && mirror == Mirror.NONE;
+    }
+
+    /**
+     * 变换后的相对 x。
+     */
+    public int x(int x, int z) {
+        int mx = mirror == Mirror.FRONT_BACK ? -x : x;
+        int mz = mirror == Mirror.LEFT_RIGHT ? -z : z;
+        return switch (rotation) {
+            case NONE -> mx;
+            case CLOCKWISE_90 -> -mz;
+            case CLOCKWISE_180 -> -mx;
+            case COUNTERCLOCKWISE_90 -> mz;
+        };
+    }
+
+    /**
+     * 变换后的相对 z。
+     */
+    public int z(int x, int z) {
+        int mx = mirror == Mirror.FRONT_BACK ? -x : x;
+        int mz = mirror == Mirror.LEFT_RIGHT ? -z : z;
+        return switch (rotation) {
+            case NONE -> mz;
+            case CLOCKWISE_90 -> mx;
+            case CLOCKWISE_180 -> -mz;
+            case COUNTERCLOCKWISE_90 -> -mx;
+        };
+    }
+
+    /**
+     * 旋转 90° 时 x 与 z 轴互换，镜像不改变轴。
+     */
+    public Direction.Axis axis(Direction.Axis axis) {
+        if (axis == Direction.Axis.Y || rotation == Rotation.NONE || rotation == Rotation.CLOCKWISE_180) {
+            return axis;
+        }
+        return axis == Direction.Axis.X ? Direction.Axis.Z : Direction.Axis.X;
+    }
+
+    public BlockState state(BlockState state) {
+        return state.mirror(mirror).rotate(rotation);
+    }
+
+    /**
+     * 整个调色板的状态变换表，下标与输入一致（null 保持 null）。
+     */
+    public BlockState[] table(BlockState[] palette) {
+        BlockState[] out = new BlockState[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            out[i] = palette[i] == null ? null : state(palette[i]);
+        }
+        return out;
+    }
+}
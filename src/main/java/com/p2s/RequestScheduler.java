@@ -0,0 +1,164 @@
+package com.p2s;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * LLM 请求调度：每个请求在自己的虚拟线程上阻塞等待 HTTP 响应，不占用平台线程。
+ * 同时进行的请求数不超过 {@link ModConfig#LLM_MAX_IN_FLIGHT}，其余最多 {@link ModConfig#LLM_QUEUE_SIZE} 个排队等待，
+ * 再多的请求直接以 {@link RejectedExecutionException} 失败。每次向某个接口发出 HTTP 调用前还要通过 {@link #throttle}
+ * 从该接口的令牌桶取一个令牌（{@link ModConfig#LLM_RATE_PER_MINUTE} 为每分钟补充的令牌数，{@link ModConfig#LLM_RATE_BURST} 为桶容量）。
+ * 等待使用 {@link ReentrantLock} 而不是 synchronized，避免虚拟线程在等待期间钉住载体线程。
+ */
+final class RequestScheduler {
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Condition SLOT_FREED = LOCK.newCondition();
+    private static final Map<String, TokenBucket> BUCKETS = new ConcurrentHashMap<>();
+    private static final AtomicLong REJECTED = new AtomicLong();
+    // 受 LOCK 保护
+    private static int inFlight;
+    private static int waiting;
+
+    private RequestScheduler() {
+    }
+
+    /**
+     * 虚拟线程执行器，也用于缓存读写等不受并发限制的短任务。
+     */
+    static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * 提交一个阻塞请求，占用一个在途名额直到完成。队列已满时返回的 future 立即以 {@link RejectedExecutionException} 失败。
+     */
+    static <T> CompletableFuture<T> submit(Supplier<T> request) {
+        LOCK.lock();
+        try {
+            if (inFlight + waiting >= maxInFlight() + Math.max(0, ModConfig.LLM_QUEUE_SIZE)) {
+                REJECTED.incrementAndGet();
+                P2SMod.LOGGER.warn("LLM request rejected: {} in flight, {} waiting", inFlight, waiting);
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "LLM 请求队列已满（进行中 " + inFlight + "，等待 " + waiting + "），请稍后再试"));
+            }
+            waiting++;
+        } finally {
+            LOCK.unlock();
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            acquireSlot();
+            try {
+                return request.get();
+            } finally {
+                releaseSlot();
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * 新请求是否会被拒绝；用于在命令入口提前给出反馈，实际以 {@link #submit} 的判断为准。
+     */
+    static boolean saturated() {
+        LOCK.lock();
+        try {
+            return inFlight + waiting >= maxInFlight() + Math.max(0, ModConfig.LLM_QUEUE_SIZE);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static String report() {
+        LOCK.lock();
+        try {
+            return "LLM requests: " + inFlight + "/" + maxInFlight() + " in flight, " + waiting + "/" + Math.max(0, ModConfig.LLM_QUEUE_SIZE)
+                    + " waiting, " + REJECTED.get() + " rejected";
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static int maxInFlight() {
+        return Math.max(1, ModConfig.LLM_MAX_IN_FLIGHT);
+    }
+
+    private static void acquireSlot() {
+        LOCK.lock();
+        try {
+            // 配置重载后上限可能变小，已在途的请求照常完成，新的按新上限等待
+            while (inFlight >= maxInFlight()) {
+                SLOT_FREED.awaitUninterruptibly();
+            }
+            waiting--;
+            inFlight++;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static void releaseSlot() {
+        LOCK.lock();
+        try {
+            inFlight--;
+            SLOT_FREED.signal();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * 阻塞直到 {@code endpoint} 的令牌桶有令牌。
+     */
+    static void throttle(String endpoint) {
+        BUCKETS.computeIfAbsent(endpoint, e -> new TokenBucket()).acquire();
+    }
+
+    /**
+     * 每个接口一个令牌桶；速率与容量每次取令牌时读取配置，重载立即生效。速率为 0 表示不限速。
+     */
+    private static final class TokenBucket {
+        private final ReentrantLock lock = new ReentrantLock();
+        private double tokens = -1;
+        private long refilledAt = System.nanoTime();
+
+        void acquire() {
+            while (true) {
+                long waitNanos;
+                lock.lock();
+                try {
+                    int perMinute = ModConfig.LLM_RATE_PER_MINUTE;
+                    if (perMinute <= 0) {
+                        return;
+                    }
+                    int burst = Math.max(1, ModConfig.LLM_RATE_BURST);
+                    double perNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+                    long now = System.nanoTime();
+                    tokens = tokens < 0 ? burst : Math.min(burst, tokens + (now - refilledAt) * perNano);
+                    refilledAt = now;
+                    if (tokens >= 1) {
+                        tokens -= 1;
+                        return;
+                    }
+                    waitNanos = (long) Math.ceil((1 - tokens) / perNano);
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("等待限速令牌时被中断", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.p2s;
+
+import com.google.gson.Gson;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * LLM 结果缓存，键为 (模型, 当前系统提示词的哈希, 用户 prompt, temperature)。
+ * 两级：内存中按访问顺序淘汰的 LRU（解析好的结果），以及配置目录 {@code p2s_cache/} 下每个键一个 JSON 文件
+ * （原始消息内容，命中时重新解析）。只缓存能成功解析的回答。
+ * 同一个键同时只有一个请求在途，其余调用共享它的结果（single-flight）。
+ */
+public final class ResponseCache {
+    private static final Gson GSON = new Gson();
+    private static final Path ROOT = FabricLoader.getInstance().getConfigDir().resolve("p2s_cache");
+    // 访问顺序的 LinkedHashMap，所有访问在 MEMORY 上加锁
+    private static final LinkedHashMap<String, LLMService.Result> MEMORY = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<String, CompletableFuture<LLMService.Result>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final AtomicLong MEMORY_HITS = new AtomicLong();
+    private static final AtomicLong DISK_HITS = new AtomicLong();
+    private static final AtomicLong COALESCED = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private ResponseCache() {
+    }
+
+    public static String key(String model, String systemPrompt, String userPrompt, double temperature) {
+        return sha256(model + "\u0000" + sha256(systemPrompt) + "\u0000" + userPrompt + "\u0000" + temperature);
+    }
+
+    /**
+     * 按内存、磁盘的顺序查找，都未命中时调用 {@code fetch} 发起请求并写入两级缓存。
+     * 磁盘读取在 {@code executor} 上进行，调用线程不做 IO。
+     */
+    public static CompletableFuture<LLMService.Result> get(String key, Executor executor,
+                                                           Supplier<CompletableFuture<LLMService.Result>> fetch) {
+        if (!ModConfig.LLM_CACHE) {
+            MISSES.incrementAndGet();
+            return fetch.get();
+        }
+        LLMService.Result hit = memoryGet(key);
+        if (hit != null) {
+            MEMORY_HITS.incrementAndGet();
+            P2SMod.LOGGER.info("LLM cache hit (memory) for {}", key.substring(0, 12));
+            return CompletableFuture.completedFuture(hit);
+        }
+        CompletableFuture<LLMService.Result> mine = new CompletableFuture<>();
+        CompletableFuture<LLMService.Result> existing = IN_FLIGHT.putIfAbsent(key, mine);
+        if (existing != null) {
+            COALESCED.incrementAndGet();
+            P2SMod.LOGGER.info("LLM request {} joined an identical in-flight request", key.substring(0, 12));
+            return existing;
+        }
+        CompletableFuture.supplyAsync(() -> diskGet(key), executor)
+                .thenCompose(disk -> {
+                    if (disk != null) {
+                        DISK_HITS.incrementAndGet();
+                        P2SMod.LOGGER.info("LLM cache hit (disk) for {}", key.substring(0, 12));
+                        return CompletableFuture.completedFuture(disk);
+                    }
+                    MISSES.incrementAndGet();
+                    return fetch.get().thenApply(result -> {
+                        diskPut(key, result);
+                        return result;
+                    });
+                })
+                .whenComplete((result, ex) -> {
+                    if (ex == null) {
+                        memoryPut(key, result);
+                    }
+                    IN_FLIGHT.remove(key, mine);
+                    if (ex != null) {
+                        mine.completeExceptionally(ex);
+                    } else {
+                        mine.complete(result);
+                    }
+                });
+        return mine;
+    }
+
+    /**
+     * 清空两级缓存与统计，返回删除的磁盘条目数。在途请求不受影响。
+     */
+    public static int flush() {
+        synchronized (MEMORY) {
+            MEMORY.clear();
+        }
+        MEMORY_HITS.set(0);
+        DISK_HITS.set(0);
+        COALESCED.set(0);
+        MISSES.set(0);
+        int deleted = 0;
+        synchronized (ResponseCache.class) {
+            for (Path file : diskFiles()) {
+                try {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                } catch (IOException e) {
+                    P2SMod.LOGGER.warn("Delete LLM cache file {} failed: {}", file.getFileName(), e.getMessage());
+                }
+            }
+        }
+        return deleted;
+    }
+
+    public static List<String> report() {
+        long memory = MEMORY_HITS.get();
+        long disk = DISK_HITS.get();
+        long coalesced = COALESCED.get();
+        long misses = MISSES.get();
+        long total = memory + disk + coalesced + misses;
+        int memoryEntries;
+        synchronized (MEMORY) {
+            memoryEntries = MEMORY.size();
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("requests=%d hit rate=%.1f%% (memory %d, disk %d, coalesced %d, misses %d)",
+                total, total == 0 ? 0.0 : (memory + disk + coalesced) * 100.0 / total, memory, disk, coalesced, misses));
+        lines.add("entries: memory " + memoryEntries + "/" + ModConfig.LLM_CACHE_MEMORY_ENTRIES
+                + ", disk " + diskFiles().size() + "/" + ModConfig.LLM_CACHE_DISK_ENTRIES
+                + ", in flight " + IN_FLIGHT.size() + (ModConfig.LLM_CACHE ? "" : " (cache disabled)"));
+        return lines;
+    }
+
+    private static LLMService.Result memoryGet(String key) {
+        synchronized (MEMORY) {
+            return MEMORY.get(key);
+        }
+    }
+
+    private static void memoryPut(String key, LLMService.Result result) {
+        synchronized (MEMORY) {
+            MEMORY.put(key, result);
+            int max = Math.max(1, ModConfig.LLM_CACHE_MEMORY_ENTRIES);
+            var it = MEMORY.entrySet().iterator();
+            while (MEMORY.size() > max && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static synchronized LLMService.Result diskGet(String key) {
+        Path file = ROOT.resolve(key + ".json");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            DiskEntry entry = GSON.fromJson(Files.readString(file, StandardCharsets.UTF_8), DiskEntry.class);
+            if (entry == null || entry.content == null) {
+                return null;
+            }
+            // 刷新修改时间，磁盘淘汰按最近使用
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+            return LLMService.parseContent(entry.content);
+        } catch (Exception e) {
+            P2SMod.LOGGER.warn("Discarding unreadable LLM cache file {}: {}", file.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized void diskPut(String key, LLMService.Result result) {
+        try {
+            Files.createDirectories(ROOT);
+            DiskEntry entry = new DiskEntry();
+            entry.model = EndpointRouter.modelKey();
+            entry.createdAt = System.currentTimeMillis();
+            entry.content = result.fullMessage();
+            Files.writeString(ROOT.resolve(key + ".json"), GSON.toJson(entry), StandardCharsets.UTF_8);
+            prune();
+        } catch (IOException e) {
+            P2SMod.LOGGER.warn("Write LLM cache entry failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 磁盘条目超过上限时删除最久未使用的。
+     */
+    private static void prune() throws IOException {
+        List<Path> files = diskFiles();
+        int excess = files.size() - Math.max(1, ModConfig.LLM_CACHE_DISK_ENTRIES);
+        if (excess <= 0) {
+            return;
+        }
+        files.sort(Comparator.comparingLong(ResponseCache::lastModified));
+        for (int i = 0; i < excess; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    private static List<Path> diskFiles() {
+        if (!Files.isDirectory(ROOT)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(ROOT)) {
+            return new ArrayList<>(files.filter(p -> p.toString().endsWith(".json")).toList());
+        } catch (IOException e) {
+            P2SMod.LOGGER.warn("List LLM cache failed: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class DiskEntry {
+        String model;
+        long createdAt;
+        String content;
+    }
+}
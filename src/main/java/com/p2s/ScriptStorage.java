@@ -27,6 +27,14 @@ public final class ScriptStorage {
     private ScriptStorage() {
     }
 
+    /**
+     * 存档目录；编译缓存等附属文件与 {@code <name>.json} 放在一起。
+     */
+    public static Path root() {
+        ensureDir();
+        return ROOT;
+    }
+
     public static synchronized String save(String prompt, StructureBuilder.VbsScript script, String fullMessage, String suggestedName) {
         ensureDir();
         String name = sanitizeName(suggestedName != null ? suggestedName : generateName(prompt));
@@ -86,6 +94,7 @@ public final class ScriptStorage {
         }
         try {
             Files.delete(file);
+            TemplateCache.delete(name);
             return true;
         } catch (IOException e) {
             P2SMod.LOGGER.warn("Delete {} failed: {}", name, e.getMessage());
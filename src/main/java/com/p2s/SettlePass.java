@@ -0,0 +1,156 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.BaseRailBlock;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.CrossCollisionBlock;
+import net.minecraft.world.level.block.DiodeBlock;
+import net.minecraft.world.level.block.FallingBlock;
+import net.minecraft.world.level.block.RedStoneWireBlock;
+import net.minecraft.world.level.block.StairBlock;
+import net.minecraft.world.level.block.WallBlock;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * 抑制更新放置之后的整理：按 section 顺序扫描一遍计划，只处理两类位置——
+ * 结构边界（六个邻居中有不属于计划的位置）与对更新敏感的方块（会下落的、含流体的、红石元件、铁轨、
+ * 栅栏/玻璃板/墙/楼梯这类形状取决于邻居的方块）。
+ * 对这些位置重算形状，敏感方块再补发一次邻居通知，边界位置则让结构外的邻居更新形状并收到通知。
+ * 结构内部的普通方块不会被触及；整理的位置总数受 {@link ModConfig#BUILD_SETTLE_MAX_BLOCKS} 限制。
+ * 可分多次推进，只能在服务端主线程调用。
+ */
+final class SettlePass {
+    // 每个被整理的位置相对于一次普通写入的预算开销
+    static final int SETTLE_COST = 8;
+
+    private final ServerLevel world;
+    private final VoxelPlan plan;
+    private final boolean[] sensitive;
+    private final Long2IntOpenHashMap sectionIndex = new Long2IntOpenHashMap();
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private final int maxSettled;
+    private int section;
+    private int voxel;
+    private int settled;
+    private boolean done;
+
+    SettlePass(ServerLevel world, VoxelPlan plan) {
+        this.world = world;
+        this.plan = plan;
+        this.maxSettled = ModConfig.BUILD_SETTLE_MAX_BLOCKS;
+        // 每个调色板状态只判断一次，扫描时查表
+        this.sensitive = new boolean[plan.paletteSize() + 1];
+        for (int id = 1; id <= plan.paletteSize(); id++) {
+            sensitive[id] = isSensitive(plan.state(id));
+        }
+        this.sectionIndex.defaultReturnValue(-1);
+        for (int i = 0; i < plan.sectionCount(); i++) {
+            sectionIndex.put(plan.sectionKey(i), i);
+        }
+    }
+
+    static boolean isSensitive(BlockState state) {
+        Block block = state.getBlock();
+        return block instanceof FallingBlock
+                || !state.getFluidState().isEmpty()
+                || state.isSignalSource()
+                || block instanceof RedStoneWireBlock
+                || block instanceof DiodeBlock
+                || block instanceof BaseRailBlock
+                || block instanceof CrossCollisionBlock
+                || block instanceof WallBlock
+                || block instanceof StairBlock;
+    }
+
+    /**
+     * 在 {@code budget} 个预算单位内继续扫描（扫描一个体素计 1，整理一个位置另计 {@link #SETTLE_COST}），
+     * 返回实际消耗。
+     */
+    int step(int budget, long deadlineNanos) {
+        int used = 0;
+        int scanned = 0;
+        while (!done && used < budget) {
+            if (section >= plan.sectionCount()) {
+                done = true;
+                break;
+            }
+            if ((++scanned & 255) == 0 && System.nanoTime() >= deadlineNanos) {
+                break;
+            }
+            short[] data = plan.section(section);
+            int id = data[voxel];
+            if (id != 0) {
+                long key = plan.sectionKey(section);
+                int x = SectionPos.sectionToBlockCoord(SectionPos.x(key)) + (voxel & 15);
+                int y = SectionPos.sectionToBlockCoord(SectionPos.y(key)) + (voxel >> 8);
+                int z = SectionPos.sectionToBlockCoord(SectionPos.z(key)) + ((voxel >> 4) & 15);
+                boolean boundary = isBoundary(data, x, y, z);
+                if (boundary || sensitive[id]) {
+                    settle(x, y, z, boundary, sensitive[id]);
+                    used += SETTLE_COST;
+                    if (++settled >= maxSettled) {
+                        P2SMod.LOGGER.warn("Settle pass stopped after {} positions (limit reached)", settled);
+                        done = true;
+                    }
+                }
+            }
+            used++;
+            if (++voxel >= VoxelPlan.SECTION_VOLUME) {
+                voxel = 0;
+                section++;
+            }
+        }
+        return used;
+    }
+
+    private void settle(int x, int y, int z, boolean boundary, boolean sensitive) {
+        pos.set(x, y, z);
+        BlockState current = world.getBlockState(pos);
+        // 重算形状：楼梯/栅栏连接、失去支撑的方块；会下落的方块与流体也在这里安排 tick
+        BlockState shaped = Block.updateFromNeighbourShapes(current, world, pos);
+        if (shaped != current) {
+            world.setBlock(pos, shaped, Block.UPDATE_CLIENTS);
+        }
+        if (sensitive) {
+            // 红石与铁轨根据自身位置重新计算充能与朝向
+            world.neighborChanged(pos, shaped.getBlock(), pos);
+        }
+        if (boundary) {
+            shaped.updateNeighbourShapes(world, pos, Block.UPDATE_CLIENTS);
+        }
+        world.updateNeighborsAt(pos, shaped.getBlock());
+    }
+
+    private boolean isBoundary(short[] data, int x, int y, int z) {
+        return !contains(data, x - 1, y, z) || !contains(data, x + 1, y, z)
+                || !contains(data, x, y - 1, z) || !contains(data, x, y + 1, z)
+                || !contains(data, x, y, z - 1) || !contains(data, x, y, z + 1);
+    }
+
+    /**
+     * 计划是否写入该位置；同一 section 内直接查当前数组，跨 section 时查索引。
+     */
+    private boolean contains(short[] current, int x, int y, int z) {
+        long key = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        short[] data = key == plan.sectionKey(section) ? current : null;
+        if (data == null) {
+            int index = sectionIndex.get(key);
+            if (index < 0) {
+                return false;
+            }
+            data = plan.section(index);
+        }
+        return data[VoxelPlan.localIndex(x, y, z)] != 0;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    int settled() {
+        return settled;
+    }
+}
@@ -0,0 +1,287 @@
+package com.p2s;
+
+import net.minecraft.commands.CommandSourceStack;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 流式生成的分层构建：模型每输出完一层就在编译线程上单独编译，并作为独立的 {@link BuildJob} 入队，
+ * 第 0 层在模型还在写屋顶时就开始放置。各层严格按顺序放置（上一层完成才入队下一层），
+ * 因此重叠位置仍是后写覆盖先写。各层共用一份撤销记录（每个位置只记最初的方块），
+ * 整次构建结束（完成或失败）时保存为一个快照，/p2sundo 一次撤销整个结构。
+ * 流结束后以完整内容的严格解析为准：补上流中没有识别出的层，再保存脚本并写入模板缓存。
+ * 各层编译后叠加到一份累计计划上：跨度、chunk 与方块数上限按累计结果在每层入队前检查，
+ * 模板缓存也直接使用累计计划，不再整体重新编译（跨层的 replace 因此只作用于本层，与实际放置的结果一致）。
+ * <p>
+ * 线程：{@link #onPalette}/{@link #onLayer}/{@link #finish} 在读取响应的线程上依次调用；
+ * 编译在 {@link StructureBuilder#compileExecutor()} 上串行；其余状态只在服务端主线程访问。
+ */
+final class StreamingBuild implements LLMService.StreamListener {
+    private final CommandSourceStack source;
+    private final MinecraftServer server;
+    private final ServerLevel world;
+    private final BlockPos origin;
+    private final String prompt;
+    private final ChunkTickets preload;
+
+    // 读取线程
+    private Map<String, String> palette;
+    private final List<StructureBuilder.VbsLayer> early = new ArrayList<>();
+    private int streamed;
+    private int submitted;
+    private CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+
+    // 编译链（串行）
+    private final VoxelPlan.Builder compiled;
+    private final LongOpenHashSet compiledChunks = new LongOpenHashSet();
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+    // 服务端主线程
+    private final ArrayDeque<Layer> ready = new ArrayDeque<>();
+    private BuildJob running;
+    private final VoxelPlan.Builder undo;
+    private int undoId;
+    private boolean undoStored;
+    private boolean streamDone;
+    private boolean closed;
+    private String savedName;
+    private int layersBuilt;
+    private long placed;
+    private long skipped;
+
+    StreamingBuild(CommandSourceStack source, BlockPos origin, String prompt, ChunkTickets preload) {
+        this.source = source;
+        this.server = source.getServer();
+        this.world = source.getLevel();
+        this.origin = origin;
+        this.prompt = prompt;
+        this.preload = preload;
+        this.undo = new VoxelPlan.Builder(origin);
+        this.compiled = new VoxelPlan.Builder(origin);
+    }
+
+    @Override
+    public void onPalette(Map<String, String> palette) {
+        if (this.palette != null) {
+            return;
+        }
+        this.palette = palette;
+        // 调色板写在 structure 之后的少见情况：先到的层现在才能编译
+        for (StructureBuilder.VbsLayer layer : early) {
+            submit(layer);
+        }
+        early.clear();
+    }
+
+    @Override
+    public void onLayer(int index, StructureBuilder.VbsLayer layer) {
+        streamed = index + 1;
+        if (palette == null) {
+            early.add(layer);
+        } else {
+            submit(layer);
+        }
+    }
+
+    /**
+     * 流已结束且完整内容解析成功：补上流中未交付的层，然后保存脚本、缓存模板。
+     */
+    void finish(LLMService.Result result) {
+        StructureBuilder.VbsScript script = result.script();
+        List<StructureBuilder.VbsLayer> layers = script.structure == null ? List.of() : script.structure;
+        int from = streamed;
+        if (palette == null) {
+            // 流中没有识别出调色板（或服务端没有流式输出）：全部按完整结果构建
+            palette = script.palette;
+            early.clear();
+            from = 0;
+        }
+        for (int i = from; i < layers.size(); i++) {
+            submit(layers.get(i));
+        }
+        chain = chain.thenRunAsync(() -> {
+            String name = ScriptStorage.save(prompt, script, result.fullMessage(), null);
+            ScriptStorage.Entry entry = ScriptStorage.load(name);
+            if (entry != null) {
+                try {
+                    VoxelPlan plan = compiled.build();
+                    ModCommandRegistry.cacheTemplate(server, name, TemplateCache.toTag(plan, origin, TemplateCache.sourceHash(entry)));
+                } catch (RuntimeException e) {
+                    // 各层已经放置，缓存失败不影响本次构建
+                    P2SMod.LOGGER.warn("Caching template for {} failed: {}", name, e.getMessage());
+                }
+            }
+            server.execute(() -> savedName = name);
+        }, StructureBuilder.compileExecutor());
+        chain.whenComplete((ignored, ex) -> server.execute(() -> {
+            if (ex != null) {
+                fail(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                return;
+            }
+            streamDone = true;
+            maybeComplete();
+        }));
+    }
+
+    private void submit(StructureBuilder.VbsLayer layer) {
+        int index = submitted++;
+        Map<String, String> layerPalette = palette;
+        chain = chain.thenRunAsync(() -> {
+            if (layer == null || layer.actions == null || layer.actions.isEmpty()) {
+                return;
+            }
+            StructureBuilder.VbsScript single = new StructureBuilder.VbsScript();
+            single.palette = layerPalette;
+            single.structure.add(layer);
+            VoxelPlan plan = StructureBuilder.compile(origin, single);
+            if (plan.isEmpty()) {
+                return;
+            }
+            requireWithinLimits(plan);
+            compiled.addAll(plan);
+            if (compiled.blockCount() > ModConfig.MAX_BLOCKS_PER_BUILD) {
+                throw new IllegalArgumentException("结构超过单次构建的方块上限: " + ModConfig.MAX_BLOCKS_PER_BUILD);
+            }
+            server.execute(() -> offer(new Layer(index, plan)));
+        }, StructureBuilder.compileExecutor());
+    }
+
+    /**
+     * 单层编译时只检查了本层；这里按加上本层后的累计包围盒与 chunk 检查整体限制。只在编译链上调用。
+     */
+    private void requireWithinLimits(VoxelPlan plan) {
+        minX = Math.min(minX, plan.minX());
+        minY = Math.min(minY, plan.minY());
+        minZ = Math.min(minZ, plan.minZ());
+        maxX = Math.max(maxX, plan.maxX());
+        maxY = Math.max(maxY, plan.maxY());
+        maxZ = Math.max(maxZ, plan.maxZ());
+        long span = Math.max((long) maxX - minX, Math.max((long) maxY - minY, (long) maxZ - minZ)) + 1;
+        if (span > ModConfig.MAX_BUILD_SPAN) {
+            throw new IllegalArgumentException("构建超出限制: structure too large: span " + span + " > " + ModConfig.MAX_BUILD_SPAN);
+        }
+        for (int i = 0; i < plan.sectionCount(); i++) {
+            long key = plan.sectionKey(i);
+            compiledChunks.add(ChunkPos.asLong(SectionPos.x(key), SectionPos.z(key)));
+        }
+        if (compiledChunks.size() > ModConfig.MAX_CHUNKS_PER_BUILD) {
+            throw new IllegalArgumentException("构建超出限制: touches too many chunks: " + compiledChunks.size()
+                    + " > " + ModConfig.MAX_CHUNKS_PER_BUILD);
+        }
+    }
+
+    private void offer(Layer layer) {
+        if (closed) {
+            return;
+        }
+        ready.add(layer);
+        startNext();
+    }
+
+    private void startNext() {
+        if (closed) {
+            return;
+        }
+        if (running != null || ready.isEmpty()) {
+            maybeComplete();
+            return;
+        }
+        Layer layer = ready.poll();
+        running = new BuildJob(label(layer.index), source.getTextName(), BuildJob.Priority.GENERATE, world, layer.plan, undo,
+                this::layerDone, this::layerFailed);
+        if (undoId == 0) {
+            undoId = running.id();
+        }
+        BuildScheduler.enqueue(running);
+        if (layersBuilt == 0) {
+            source.sendSuccess(() -> Component.literal("First layer received, building while the model is still writing..."), false);
+        }
+    }
+
+    private void layerDone(BuildJob job) {
+        running = null;
+        layersBuilt++;
+        placed += job.placed();
+        skipped += job.skipped();
+        if (closed) {
+            storeUndo();
+            return;
+        }
+        startNext();
+    }
+
+    private void layerFailed(Exception e) {
+        running = null;
+        fail(e);
+        storeUndo();
+    }
+
+    /**
+     * 请求、解析或任一层失败：已放置的层保留（可撤销），不再放置后续的层。只能在服务端主线程调用。
+     */
+    void fail(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ready.clear();
+        preload.release();
+        // 还在放置的层结束后再保存快照
+        storeUndo();
+        source.sendFailure(Component.literal("Build failed after " + layersBuilt + " layer(s): " + cause.getMessage()));
+        P2SMod.LOGGER.error("Streaming build failed", cause);
+    }
+
+    private void maybeComplete() {
+        if (closed || !streamDone || running != null || !ready.isEmpty()) {
+            return;
+        }
+        closed = true;
+        preload.release();
+        storeUndo();
+        source.sendSuccess(() -> Component.literal("Build completed (saved as " + savedName + ", " + layersBuilt + " layers, "
+                + placed + " blocks, " + skipped + " unchanged)"), false);
+    }
+
+    /**
+     * 构建结束且没有层在放置时，把共用的撤销记录保存为一个快照（以第一层任务的编号为准），只保存一次。
+     */
+    private void storeUndo() {
+        if (undoStored || running != null || undoId == 0) {
+            return;
+        }
+        undoStored = true;
+        String label = shortPrompt();
+        CompletableFuture.supplyAsync(() -> new UndoHistory.Snapshot(undoId, label, world.dimension(), undo.build()),
+                        StructureBuilder.compileExecutor())
+                .thenAccept(UndoHistory::push)
+                .exceptionally(ex -> {
+                    P2SMod.LOGGER.warn("Failed to store undo snapshot for streamed build #{}: {}", undoId, ex.getMessage());
+                    return null;
+                });
+    }
+
+    private String label(int index) {
+        return shortPrompt() + " #" + index;
+    }
+
+    private String shortPrompt() {
+        return prompt.length() > 24 ? prompt.substring(0, 24) + "..." : prompt;
+    }
+
+    private record Layer(int index, VoxelPlan plan) {
+    }
+}
@@ -1,9 +1,9 @@
 package com.p2s;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.annotations.JsonAdapter;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.level.ServerLevel;
@@ -13,36 +13,103 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.block.state.properties.DirectionProperty;
 import net.minecraft.world.level.block.state.properties.Property;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class StructureBuilder {
-    private static final Gson GSON = new GsonBuilder().create();
+    // rawId -> 解析结果（含模糊匹配），注册表变化时由 BlockIdIndex 清空。
+    // 键来自模型输出，按访问顺序淘汰以免无限增长；所有访问在 RESOLVED 上加锁
+    private static final int RESOLVED_MAX_ENTRIES = 4096;
+    private static final Map<String, BlockState> RESOLVED = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BlockState> eldest) {
+            return size() > RESOLVED_MAX_ENTRIES;
+        }
+    };
+    private static final AtomicInteger COMPILE_THREAD_ID = new AtomicInteger(1);
+    private static final ExecutorService COMPILE_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+                Thread thread = new Thread(runnable, "p2s-compile-" + COMPILE_THREAD_ID.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
 
     private StructureBuilder() {
     }
 
+    /**
+     * 脚本校验、调色板解析与体素展开使用的工作线程池；这些步骤不访问世界，可以离开服务端主线程。
+     */
+    public static Executor compileExecutor() {
+        return COMPILE_EXECUTOR;
+    }
+
+    /**
+     * 解析 VBS JSON；null 或空白输入视为没有脚本，返回 null。
+     */
     public static VbsScript parse(String json) {
-        try {
-            return GSON.fromJson(json, VbsScript.class);
-        } catch (JsonSyntaxException e) {
+        if (json == null || json.isBlank()) {
+            return null;
+        }
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.PARSE)) {
+            timer.units(json.length());
+            return VbsReader.read(new StringReader(json));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
             throw new IllegalArgumentException("无法解析 VBS JSON", e);
         }
     }
 
     public static void build(ServerLevel world, BlockPos origin, VbsScript script) {
+        place(world, compile(origin, script));
+    }
+
+    /**
+     * 一次性放置整个编译结果。大结构应改用 {@link BuildJob} 分 tick 放置。
+     */
+    public static void place(ServerLevel world, VoxelPlan plan) {
+        place(plan, new BulkPlacer(world, ModConfig.BUILD_SKIP_UNCHANGED));
+    }
+
+    /**
+     * 把整个编译结果写入任意目标，返回目标报告的写入数。
+     */
+    public static long place(VoxelPlan plan, BlockSink sink) {
+        return new VoxelPlan.Cursor(plan).drain(sink);
+    }
+
+    /**
+     * 将脚本编译为 {@link VoxelPlan}：解析调色板、展开所有动作，并按动作顺序解决重叠（后写覆盖先写）。
+     */
+    public static VoxelPlan compile(BlockPos origin, VbsScript script) {
+        return compile(origin, script, PlanTransform.IDENTITY);
+    }
+
+    /**
+     * 按给定的旋转与镜像编译：动作坐标绕 {@code origin} 变换后再光栅化，方块状态在最后按调色板整体变换一次。
+     */
+    public static VoxelPlan compile(BlockPos origin, VbsScript script, PlanTransform transform) {
         if (script == null || script.structure == null) {
             throw new IllegalArgumentException("结构数据为空");
         }
 
-        P2SMod.LOGGER.info("Building structure at {} with {} layers", origin, script.structure.size());
+        BuildEstimate.of(origin, script, null).requireWithinLimits();
+
+        P2SMod.LOGGER.info("Compiling structure at {} with {} layers", origin, script.structure.size());
         Map<String, BlockState> palette = resolvePalette(script.palette);
-        BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
         Set<String> missingPaletteKeys = new HashSet<>();
+        VoxelPlan.Builder builder = new VoxelPlan.Builder(origin);
+        List<Voxelizer.Shape> shapes = new ArrayList<>();
 
         for (VbsLayer layer : script.structure) {
             if (layer == null || layer.actions == null) {
@@ -52,100 +119,165 @@ public final class StructureBuilder {
                 if (action == null || action.type == null) {
                     continue;
                 }
-                switch (action.type.toLowerCase()) {
-                    case "fill" -> handleFill(world, origin, palette, missingPaletteKeys, mutable, action);
-                    case "frame" -> handleFrame(world, origin, palette, missingPaletteKeys, mutable, action);
-                    case "set" -> handleSet(world, origin, palette, missingPaletteKeys, mutable, action);
-                    default -> P2SMod.LOGGER.warn("未知动作类型: {}", action.type);
+                Voxelizer.Shape shape = openAction(origin, transform, builder, palette, missingPaletteKeys, action);
+                if (shape != null) {
+                    shapes.add(shape);
                 }
             }
         }
+
+        VoxelPlan plan;
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.VOXELIZE)) {
+            Voxelizer.rasterize(shapes, builder);
+            // replace 按方块类型匹配，旋转不改变方块类型，所以状态变换放在光栅化之后
+            builder.transformPalette(transform);
+            plan = builder.build();
+            timer.units(plan.blockCount());
+        }
+        P2SMod.LOGGER.info("Compiled {} blocks in {} sections ({} palette states)", plan.blockCount(), plan.sectionCount(), plan.paletteSize());
+        return plan;
     }
 
-    private static Map<String, BlockState> resolvePalette(Map<String, String> paletteDef) {
+    static Map<String, BlockState> resolvePalette(Map<String, String> paletteDef) {
         Map<String, BlockState> palette = new HashMap<>();
-        if (paletteDef != null) {
-            for (Map.Entry<String, String> entry : paletteDef.entrySet()) {
-                palette.put(entry.getKey(), resolveBlockState(entry.getValue(), entry.getKey()));
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Phase.PALETTE)) {
+            if (paletteDef != null) {
+                for (Map.Entry<String, String> entry : paletteDef.entrySet()) {
+                    palette.put(entry.getKey(), resolveCached(entry.getValue(), entry.getKey()));
+                }
             }
+            timer.units(palette.size());
         }
         return palette;
     }
 
-    private static void handleFill(ServerLevel world, BlockPos origin, Map<String, BlockState> palette, Set<String> missingPaletteKeys, BlockPos.MutableBlockPos mutable, VbsAction action) {
-        int[] from = coords(action.from);
-        int[] to = coords(action.to);
+    private static Voxelizer.Shape openAction(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                              Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        return switch (action.type.toLowerCase()) {
+            case "fill" -> openBox(origin, transform, builder, palette, missingPaletteKeys, action, false);
+            case "frame" -> openBox(origin, transform, builder, palette, missingPaletteKeys, action, true);
+            case "set" -> openSet(origin, transform, builder, palette, missingPaletteKeys, action);
+            case "line" -> openLine(origin, transform, builder, palette, missingPaletteKeys, action);
+            case "sphere" -> openSphere(origin, transform, builder, palette, missingPaletteKeys, action);
+            case "cylinder" -> openCylinder(origin, transform, builder, palette, missingPaletteKeys, action);
+            case "replace" -> openReplace(origin, transform, builder, palette, missingPaletteKeys, action);
+            default -> {
+                P2SMod.LOGGER.warn("未知动作类型: {}", action.type);
+                yield null;
+            }
+        };
+    }
+
+    private static Voxelizer.Shape openBox(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                           Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action,
+                                           boolean hollow) {
+        int[] from = action.from;
+        int[] to = action.to;
         if (from == null || to == null) {
-            return;
+            return null;
         }
         BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        int[] box = worldBox(origin, transform, from, to);
+        return new Voxelizer.BoxShape(builder.paletteId(state), hollow, box[0], box[1], box[2], box[3], box[4], box[5]);
+    }
 
-        int minX = Math.min(from[0], to[0]);
-        int minY = Math.min(from[1], to[1]);
-        int minZ = Math.min(from[2], to[2]);
-        int maxX = Math.max(from[0], to[0]);
-        int maxY = Math.max(from[1], to[1]);
-        int maxZ = Math.max(from[2], to[2]);
-
-        for (int x = minX; x <= maxX; x++) {
-            for (int y = minY; y <= maxY; y++) {
-                for (int z = minZ; z <= maxZ; z++) {
-                    mutable.set(origin.getX() + x, origin.getY() + y, origin.getZ() + z);
-                    world.setBlockAndUpdate(mutable, state);
-                }
-            }
+    private static Voxelizer.Shape openSet(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                           Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        if (action.at == null) {
+            return null;
         }
+        BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        int[] points = new int[action.at.length - action.at.length % 3];
+        for (int i = 0; i < points.length; i += 3) {
+            points[i] = origin.getX() + transform.x(action.at[i], action.at[i + 2]);
+            points[i + 1] = origin.getY() + action.at[i + 1];
+            points[i + 2] = origin.getZ() + transform.z(action.at[i], action.at[i + 2]);
+        }
+        return new Voxelizer.PointShape(builder.paletteId(state), points);
     }
 
-    private static void handleFrame(ServerLevel world, BlockPos origin, Map<String, BlockState> palette, Set<String> missingPaletteKeys, BlockPos.MutableBlockPos mutable, VbsAction action) {
-        int[] from = coords(action.from);
-        int[] to = coords(action.to);
+    private static Voxelizer.Shape openLine(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                            Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        int[] from = action.from;
+        int[] to = action.to;
         if (from == null || to == null) {
-            return;
+            return null;
         }
         BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        int[] points = Voxelizer.linePoints(
+                origin.getX() + transform.x(from[0], from[2]), origin.getY() + from[1], origin.getZ() + transform.z(from[0], from[2]),
+                origin.getX() + transform.x(to[0], to[2]), origin.getY() + to[1], origin.getZ() + transform.z(to[0], to[2]));
+        return new Voxelizer.PointShape(builder.paletteId(state), points);
+    }
 
-        int minX = Math.min(from[0], to[0]);
-        int minY = Math.min(from[1], to[1]);
-        int minZ = Math.min(from[2], to[2]);
-        int maxX = Math.max(from[0], to[0]);
-        int maxY = Math.max(from[1], to[1]);
-        int maxZ = Math.max(from[2], to[2]);
-
-        for (int x = minX; x <= maxX; x++) {
-            for (int y = minY; y <= maxY; y++) {
-                for (int z = minZ; z <= maxZ; z++) {
-                    boolean boundary = x == minX || x == maxX || y == minY || y == maxY || z == minZ || z == maxZ;
-                    if (!boundary) {
-                        continue;
-                    }
-                    mutable.set(origin.getX() + x, origin.getY() + y, origin.getZ() + z);
-                    world.setBlockAndUpdate(mutable, state);
-                }
-            }
+    private static Voxelizer.Shape openSphere(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                              Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        int[] center = action.center;
+        if (center == null || action.radius < 0) {
+            return null;
         }
+        int half = switch (action.half == null ? "" : action.half.toLowerCase()) {
+            case "upper", "top" -> 1;
+            case "lower", "bottom" -> -1;
+            default -> 0;
+        };
+        BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        return new Voxelizer.SphereShape(builder.paletteId(state),
+                origin.getX() + transform.x(center[0], center[2]), origin.getY() + center[1],
+                origin.getZ() + transform.z(center[0], center[2]),
+                action.radius, action.hollow, half);
     }
 
-    private static void handleSet(ServerLevel world, BlockPos origin, Map<String, BlockState> palette, Set<String> missingPaletteKeys, BlockPos.MutableBlockPos mutable, VbsAction action) {
-        if (action.at == null) {
-            return;
+    private static Voxelizer.Shape openCylinder(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                                Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        int[] center = action.center;
+        if (center == null || action.radius < 0) {
+            return null;
         }
-        BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
-        for (List<Integer> point : action.at) {
-            int[] coords = coords(point);
-            if (coords == null) {
-                continue;
-            }
-            mutable.set(origin.getX() + coords[0], origin.getY() + coords[1], origin.getZ() + coords[2]);
-            world.setBlockAndUpdate(mutable, state);
+        Direction.Axis axis = action.axis == null ? null : Direction.Axis.byName(action.axis.toLowerCase());
+        if (axis == null) {
+            axis = Direction.Axis.Y;
         }
+        BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        // 圆柱从底面中心沿轴正方向延伸；变换后方向可能反过来，取两端中较小的一端作为新的底面
+        int length = Math.max(0, action.height - 1);
+        int[] end = {
+                center[0] + (axis == Direction.Axis.X ? length : 0),
+                center[1] + (axis == Direction.Axis.Y ? length : 0),
+                center[2] + (axis == Direction.Axis.Z ? length : 0)};
+        int[] box = worldBox(origin, transform, center, end);
+        return new Voxelizer.CylinderShape(builder.paletteId(state), box[0], box[1], box[2],
+                action.radius, action.height, transform.axis(axis), action.hollow);
     }
 
-    private static int[] coords(List<Integer> list) {
-        if (list == null || list.size() < 3) {
+    private static Voxelizer.Shape openReplace(BlockPos origin, PlanTransform transform, VoxelPlan.Builder builder,
+                                               Map<String, BlockState> palette, Set<String> missingPaletteKeys, VbsAction action) {
+        int[] from = action.from;
+        int[] to = action.to;
+        if (from == null || to == null || action.target == null) {
+            return null;
+        }
+        BlockState target = palette.get(action.target);
+        if (target == null) {
+            P2SMod.LOGGER.warn("replace 的 target '{}' 不在调色板中，已忽略", action.target);
             return null;
         }
-        return new int[]{list.get(0), list.get(1), list.get(2)};
+        BlockState state = getState(palette, missingPaletteKeys, action.block, action.facing);
+        int[] box = worldBox(origin, transform, from, to);
+        return new Voxelizer.ReplaceShape(builder.paletteId(state), target.getBlock(), box[0], box[1], box[2], box[3], box[4], box[5]);
+    }
+
+    /**
+     * 两个相对角点变换后的世界坐标包围盒：{minX, minY, minZ, maxX, maxY, maxZ}。
+     */
+    private static int[] worldBox(BlockPos origin, PlanTransform transform, int[] a, int[] b) {
+        int ax = transform.x(a[0], a[2]);
+        int az = transform.z(a[0], a[2]);
+        int bx = transform.x(b[0], b[2]);
+        int bz = transform.z(b[0], b[2]);
+        return new int[]{
+                origin.getX() + Math.min(ax, bx), origin.getY() + Math.min(a[1], b[1]), origin.getZ() + Math.min(az, bz),
+                origin.getX() + Math.max(ax, bx), origin.getY() + Math.max(a[1], b[1]), origin.getZ() + Math.max(az, bz)};
     }
 
     private static BlockState getState(Map<String, BlockState> palette, Set<String> missingPaletteKeys, String key, String facing) {
@@ -158,6 +290,25 @@ public final class StructureBuilder {
         return applyFacing(Blocks.STONE.defaultBlockState(), facing);
     }
 
+    private static BlockState resolveCached(String rawId, String paletteKey) {
+        if (rawId == null) {
+            return resolveBlockState(null, paletteKey);
+        }
+        BlockState cached;
+        synchronized (RESOLVED) {
+            cached = RESOLVED.get(rawId);
+        }
+        if (cached != null) {
+            return cached;
+        }
+        // 模糊匹配较慢，不持锁；并发解析同一个 id 时结果相同，重复写入无害
+        BlockState state = resolveBlockState(rawId, paletteKey);
+        synchronized (RESOLVED) {
+            RESOLVED.put(rawId, state);
+        }
+        return state;
+    }
+
     private static BlockState resolveBlockState(String rawId, String paletteKey) {
         ResourceLocation id = ResourceLocation.tryParse(rawId);
         if (id == null && rawId != null && !rawId.contains(":")) {
@@ -190,29 +341,17 @@ public final class StructureBuilder {
         return Blocks.STONE.defaultBlockState();
     }
 
-    private static ResourceLocation findClosestBlock(String raw) {
-        if (raw == null || raw.isBlank()) {
-            return null;
-        }
-        String target = raw.toLowerCase();
-        ResourceLocation best = null;
-        int bestScore = Integer.MAX_VALUE;
-        for (ResourceLocation candidate : BuiltInRegistries.BLOCK.keySet()) {
-            String candStr = candidate.toString().toLowerCase();
-            String candPath = candidate.getPath().toLowerCase();
-            int score = Math.min(levenshtein(target, candStr), levenshtein(target, candPath));
-            if (candPath.contains(target) || candStr.contains(target)) {
-                score = Math.min(score, 1); // prioritize substring matches
-            }
-            if (score < bestScore) {
-                bestScore = score;
-                best = candidate;
-            }
+    static ResourceLocation findClosestBlock(String raw) {
+        return BlockIdIndex.nearest(raw);
+    }
+
+    static void clearResolvedCache() {
+        synchronized (RESOLVED) {
+            RESOLVED.clear();
         }
-        return bestScore <= 6 ? best : null;
     }
 
-    private static int levenshtein(String a, String b) {
+    static int levenshtein(String a, String b) {
         int m = a.length();
         int n = b.length();
         int[] prev = new int[n + 1];
@@ -259,12 +398,50 @@ public final class StructureBuilder {
         public List<VbsAction> actions = new ArrayList<>();
     }
 
+    /**
+     * 单个动作。坐标以 int 数组保存：{@code from}/{@code to} 为 [x,y,z]，{@code at} 为扁平的 xyz 三元组序列。
+     * JSON 读写由 {@link VbsReader.ActionAdapter} 负责，格式与之前的 List 形式一致；
+     * 需要 List 形式时使用 {@link #fromList()} 等兼容视图。
+     */
+    @JsonAdapter(VbsReader.ActionAdapter.class)
     public static class VbsAction {
         public String type;
         public String block;
-        public List<Integer> from;
-        public List<Integer> to;
-        public List<List<Integer>> at;
+        public int[] from;
+        public int[] to;
+        public int[] at;
         public String facing;
+        // sphere / cylinder
+        public int[] center;
+        public int radius;
+        public int height;
+        public String axis;
+        public boolean hollow;
+        public String half;
+        // replace：被替换的调色板键
+        public String target;
+
+        public List<Integer> fromList() {
+            return from == null ? null : IntArrayList.wrap(from);
+        }
+
+        public List<Integer> toList() {
+            return to == null ? null : IntArrayList.wrap(to);
+        }
+
+        public List<List<Integer>> atList() {
+            if (at == null) {
+                return null;
+            }
+            List<List<Integer>> points = new ArrayList<>(at.length / 3);
+            for (int i = 0; i + 2 < at.length; i += 3) {
+                points.add(IntArrayList.wrap(new int[]{at[i], at[i + 1], at[i + 2]}));
+            }
+            return points;
+        }
+
+        public int pointCount() {
+            return at == null ? 0 : at.length / 3;
+        }
     }
 }
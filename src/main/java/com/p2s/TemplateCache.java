@@ -0,0 +1,218 @@
+package com.p2s;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.IntTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplateManager;
+import net.minecraft.world.level.storage.LevelResource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 存档脚本的编译缓存：编译结果以原版结构模板格式（压缩 NBT）保存在存档旁的 {@code <name>.nbt}，
+ * 额外记录源脚本的哈希与相对放置点的偏移。源脚本或游戏数据版本变化后缓存失效。
+ * 模板同时写入世界的 generated 目录（{@code prompt2structure:<name>}），由服务端的 {@link StructureTemplateManager}
+ * 在首次使用时加载，可直接用于结构方块与 {@code /place template}。
+ */
+public final class TemplateCache {
+    // 编译语义变化时递增，使旧缓存全部失效
+    private static final int FORMAT = 1;
+    private static final String HASH_KEY = "p2s_source_hash";
+    private static final String OFFSET_KEY = "p2s_offset";
+    // 本次运行中已写入 generated 目录的 name@hash；在编译线程上访问
+    private static final Set<String> REGISTERED = ConcurrentHashMap.newKeySet();
+
+    private TemplateCache() {
+    }
+
+    public static String sourceHash(ScriptStorage.Entry entry) {
+        String source = FORMAT + ":" + (entry.content == null ? "null" : entry.content.toString());
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static ResourceLocation templateId(String name) {
+        return ResourceLocation.fromNamespaceAndPath(P2SMod.MOD_ID, name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 读取与 {@code hash} 匹配的缓存，缺失、过期或损坏时返回 null。
+     */
+    public static synchronized CompoundTag read(String name, String hash) {
+        Path file = file(name);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            CompoundTag tag = NbtIo.readCompressed(file, NbtAccounter.unlimitedHeap());
+            if (!hash.equals(tag.getString(HASH_KEY))
+                    || NbtUtils.getDataVersion(tag, -1) != SharedConstants.getCurrentVersion().getDataVersion().getVersion()) {
+                P2SMod.LOGGER.info("Template cache for {} is stale, recompiling", name);
+                return null;
+            }
+            return tag;
+        } catch (Exception e) {
+            P2SMod.LOGGER.warn("Read template cache {} failed: {}", file.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    public static synchronized void write(String name, CompoundTag tag) {
+        Path file = file(name);
+        try {
+            NbtIo.writeCompressed(tag, file);
+        } catch (IOException e) {
+            P2SMod.LOGGER.warn("Write template cache {} failed: {}", file.getFileName(), e.getMessage());
+        }
+    }
+
+    public static synchronized void delete(String name) {
+        try {
+            Files.deleteIfExists(file(name));
+        } catch (IOException e) {
+            P2SMod.LOGGER.warn("Delete template cache {} failed: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * 把以 {@code origin} 为放置点编译的计划转换为结构模板 NBT（坐标从包围盒最小角开始）。
+     */
+    public static CompoundTag toTag(VoxelPlan plan, BlockPos origin, String hash) {
+        int minX = plan.minX();
+        int minY = plan.minY();
+        int minZ = plan.minZ();
+        CompoundTag tag = new CompoundTag();
+        tag.put("size", intList(plan.maxX() - minX + 1, plan.maxY() - minY + 1, plan.maxZ() - minZ + 1));
+
+        // 模板调色板与计划调色板一一对应，只是从 0 开始
+        ListTag palette = new ListTag();
+        for (int id = 1; id <= plan.paletteSize(); id++) {
+            palette.add(NbtUtils.writeBlockState(plan.state(id)));
+        }
+        tag.put("palette", palette);
+
+        ListTag blocks = new ListTag();
+        for (int i = 0; i < plan.sectionCount(); i++) {
+            long key = plan.sectionKey(i);
+            short[] data = plan.section(i);
+            int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key)) - minX;
+            int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key)) - minY;
+            int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key)) - minZ;
+            for (int local = 0; local < VoxelPlan.SECTION_VOLUME; local++) {
+                int id = data[local];
+                if (id == 0) {
+                    continue;
+                }
+                CompoundTag block = new CompoundTag();
+                block.put("pos", intList(baseX + (local & 15), baseY + (local >> 8), baseZ + ((local >> 4) & 15)));
+                block.putInt("state", id - 1);
+                blocks.add(block);
+            }
+        }
+        tag.put("blocks", blocks);
+        tag.put("entities", new ListTag());
+        tag.putString(HASH_KEY, hash);
+        tag.put(OFFSET_KEY, intList(minX - origin.getX(), minY - origin.getY(), minZ - origin.getZ()));
+        return NbtUtils.addCurrentDataVersion(tag);
+    }
+
+    /**
+     * 从缓存的模板 NBT 还原以 {@code origin} 为放置点的计划，结果与直接编译一致。
+     */
+    public static VoxelPlan toPlan(CompoundTag tag, BlockPos origin) {
+        return toPlan(tag, origin, PlanTransform.IDENTITY);
+    }
+
+    /**
+     * 同上，但绕 {@code origin} 旋转、镜像：缓存始终是未变换的编译结果，变换在还原时完成，
+     * 方块状态按模板调色板变换一次，结果与带同样变换直接编译一致。
+     */
+    public static VoxelPlan toPlan(CompoundTag tag, BlockPos origin, PlanTransform transform) {
+        ListTag offset = tag.getList(OFFSET_KEY, Tag.TAG_INT);
+        int offsetX = offset.getInt(0);
+        int baseY = origin.getY() + offset.getInt(1);
+        int offsetZ = offset.getInt(2);
+
+        VoxelPlan.Builder builder = new VoxelPlan.Builder(origin);
+        ListTag palette = tag.getList("palette", Tag.TAG_COMPOUND);
+        int[] ids = new int[palette.size()];
+        for (int i = 0; i < palette.size(); i++) {
+            BlockState state = NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), palette.getCompound(i));
+            ids[i] = builder.paletteId(transform.state(state));
+        }
+        ListTag blocks = tag.getList("blocks", Tag.TAG_COMPOUND);
+        for (int i = 0; i < blocks.size(); i++) {
+            CompoundTag block = blocks.getCompound(i);
+            ListTag pos = block.getList("pos", Tag.TAG_INT);
+            int state = block.getInt("state");
+            if (state < 0 || state >= ids.length) {
+                throw new IllegalArgumentException("模板缓存中的调色板索引无效: " + state);
+            }
+            int x = offsetX + pos.getInt(0);
+            int z = offsetZ + pos.getInt(2);
+            builder.set(origin.getX() + transform.x(x, z), baseY + pos.getInt(1), origin.getZ() + transform.z(x, z), ids[state]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 把模板写入世界的 generated 目录（与模板管理器保存的位置和格式相同），同一版本每次运行只写一次。
+     * 在工作线程调用：压缩写盘不占用 tick；模板管理器不是线程安全的，这里不在其中构建模板，
+     * 只回到主线程丢弃它可能缓存的旧版本，新模板在首次使用时由管理器从文件加载。
+     */
+    public static void register(MinecraftServer server, String name, CompoundTag tag) {
+        String key = name + "@" + tag.getString(HASH_KEY);
+        if (!REGISTERED.add(key)) {
+            return;
+        }
+        ResourceLocation id = templateId(name);
+        Path file = server.getWorldPath(LevelResource.GENERATED_DIR).normalize()
+                .resolve(id.getNamespace()).resolve("structures").resolve(id.getPath() + ".nbt");
+        try {
+            Files.createDirectories(file.getParent());
+            NbtIo.writeCompressed(tag, file);
+        } catch (IOException e) {
+            REGISTERED.remove(key);
+            P2SMod.LOGGER.warn("Structure template {} could not be saved: {}", id, e.getMessage());
+            return;
+        }
+        server.execute(() -> server.getStructureManager().remove(id));
+        P2SMod.LOGGER.info("Registered structure template {}", id);
+    }
+
+    private static Path file(String name) {
+        return ScriptStorage.root().resolve(name + ".nbt");
+    }
+
+    private static ListTag intList(int x, int y, int z) {
+        ListTag list = new ListTag();
+        list.add(IntTag.valueOf(x));
+        list.add(IntTag.valueOf(y));
+        list.add(IntTag.valueOf(z));
+        return list;
+    }
+}
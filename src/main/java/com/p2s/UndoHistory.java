@@ -0,0 +1,162 @@
+package com.p2s;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.util.Mth;
+import net.minecraft.util.SimpleBitStorage;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 构建前方块状态的快照历史，供 /p2sundo 回滚。
+ * 每个快照按 section 保存调色板索引，并用 {@link SimpleBitStorage} 以最少位数打包；
+ * 总内存超过 {@link ModConfig#UNDO_MEMORY_MB} 或条数超过 {@link ModConfig#UNDO_MAX_ENTRIES} 时按保存顺序淘汰最早的快照（先进先出）。
+ */
+public final class UndoHistory {
+    // 插入顺序：迭代从最早保存的快照开始
+    private static final LinkedHashMap<Integer, Snapshot> SNAPSHOTS = new LinkedHashMap<>();
+    private static long totalBytes;
+
+    private UndoHistory() {
+    }
+
+    public static synchronized void push(Snapshot snapshot) {
+        if (snapshot.blockCount == 0) {
+            return;
+        }
+        SNAPSHOTS.put(snapshot.buildId, snapshot);
+        totalBytes += snapshot.bytes;
+        long budget = ModConfig.UNDO_MEMORY_MB * 1024L * 1024L;
+        Iterator<Map.Entry<Integer, Snapshot>> it = SNAPSHOTS.entrySet().iterator();
+        while (it.hasNext() && SNAPSHOTS.size() > 1 && (totalBytes > budget || SNAPSHOTS.size() > ModConfig.UNDO_MAX_ENTRIES)) {
+            Snapshot evicted = it.next().getValue();
+            it.remove();
+            totalBytes -= evicted.bytes;
+            P2SMod.LOGGER.info("Undo snapshot for build #{} ({}) evicted ({} KiB)", evicted.buildId, evicted.label, evicted.bytes / 1024);
+        }
+        P2SMod.LOGGER.info("Undo snapshot for build #{} ({}) stored: {} blocks, {} KiB, {} snapshot(s) total",
+                snapshot.buildId, snapshot.label, snapshot.blockCount, snapshot.bytes / 1024, SNAPSHOTS.size());
+    }
+
+    /**
+     * 取出最近的 {@code count} 个快照（最新的在前）并从历史中移除。
+     */
+    public static synchronized List<Snapshot> pop(int count) {
+        List<Snapshot> newestFirst = new ArrayList<>(SNAPSHOTS.values());
+        Collections.reverse(newestFirst);
+        List<Snapshot> popped = new ArrayList<>(newestFirst.subList(0, Math.min(count, newestFirst.size())));
+        for (Snapshot snapshot : popped) {
+            SNAPSHOTS.remove(snapshot.buildId);
+            totalBytes -= snapshot.bytes;
+        }
+        return popped;
+    }
+
+    public static synchronized int size() {
+        return SNAPSHOTS.size();
+    }
+
+    public static synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public static final class Snapshot {
+        private final int buildId;
+        private final String label;
+        private final ResourceKey<Level> dimension;
+        private final BlockPos origin;
+        private final BlockState[] palette;
+        private final long[] sectionKeys;
+        private final int[] bits;
+        private final long[][] data;
+        private final long blockCount;
+        private final long bytes;
+
+        /**
+         * 将记录下来的旧状态（索引 0 表示未改动）压缩为快照。
+         */
+        public Snapshot(int buildId, String label, ResourceKey<Level> dimension, VoxelPlan previous) {
+            this.buildId = buildId;
+            this.label = label;
+            this.dimension = dimension;
+            this.origin = previous.origin();
+            this.palette = new BlockState[previous.paletteSize() + 1];
+            for (int i = 1; i < palette.length; i++) {
+                palette[i] = previous.state(i);
+            }
+            int sections = previous.sectionCount();
+            this.sectionKeys = new long[sections];
+            this.bits = new int[sections];
+            this.data = new long[sections][];
+            long size = 0;
+            for (int i = 0; i < sections; i++) {
+                sectionKeys[i] = previous.sectionKey(i);
+                short[] source = previous.section(i);
+                int max = 0;
+                for (short id : source) {
+                    max = Math.max(max, id);
+                }
+                int sectionBits = Math.max(1, Mth.ceillog2(max + 1));
+                SimpleBitStorage storage = new SimpleBitStorage(sectionBits, VoxelPlan.SECTION_VOLUME);
+                for (int local = 0; local < VoxelPlan.SECTION_VOLUME; local++) {
+                    if (source[local] != 0) {
+                        storage.set(local, source[local]);
+                    }
+                }
+                bits[i] = sectionBits;
+                data[i] = storage.getRaw();
+                size += data[i].length * 8L + 16;
+            }
+            this.blockCount = previous.blockCount();
+            this.bytes = size + palette.length * 8L;
+        }
+
+        /**
+         * 还原为可以交给 {@link BuildJob} 放置的计划。
+         */
+        public VoxelPlan toPlan() {
+            VoxelPlan.Builder builder = new VoxelPlan.Builder(origin);
+            int[] ids = new int[palette.length];
+            for (int i = 1; i < palette.length; i++) {
+                ids[i] = builder.paletteId(palette[i]);
+            }
+            for (int i = 0; i < sectionKeys.length; i++) {
+                SimpleBitStorage storage = new SimpleBitStorage(bits[i], VoxelPlan.SECTION_VOLUME, data[i]);
+                int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKeys[i]));
+                int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKeys[i]));
+                int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKeys[i]));
+                for (int local = 0; local < VoxelPlan.SECTION_VOLUME; local++) {
+                    int id = storage.get(local);
+                    if (id != 0) {
+                        builder.set(baseX + (local & 15), baseY + (local >> 8), baseZ + ((local >> 4) & 15), ids[id]);
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        public int buildId() {
+            return buildId;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public ResourceKey<Level> dimension() {
+            return dimension;
+        }
+
+        public long blockCount() {
+            return blockCount;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.p2s;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 基于 {@link JsonReader} 的流式 VBS 解析器：坐标直接解码为 int 数组，不产生装箱的 Integer 与嵌套 List。
+ * {@link ActionAdapter} 让 Gson（包括存档读写）对 {@link StructureBuilder.VbsAction} 使用同一套解码逻辑。
+ */
+public final class VbsReader {
+    private VbsReader() {
+    }
+
+    public static StructureBuilder.VbsScript read(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        StructureBuilder.VbsScript script = new StructureBuilder.VbsScript();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "palette" -> script.palette = readPalette(reader);
+                case "structure" -> readStructure(reader, script);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return script;
+    }
+
+    static Map<String, String> readPalette(JsonReader reader) throws IOException {
+        Map<String, String> palette = new LinkedHashMap<>();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return palette;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String value = readString(reader);
+            if (value != null) {
+                palette.put(key, value);
+            }
+        }
+        reader.endObject();
+        return palette;
+    }
+
+    private static void readStructure(JsonReader reader, StructureBuilder.VbsScript script) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            script.structure = null;
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            script.structure.add(readLayer(reader));
+        }
+        reader.endArray();
+    }
+
+    static StructureBuilder.VbsLayer readLayer(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        StructureBuilder.VbsLayer layer = new StructureBuilder.VbsLayer();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"actions".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                layer.actions.add(readAction(reader));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return layer;
+    }
+
+    static StructureBuilder.VbsAction readAction(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        StructureBuilder.VbsAction action = new StructureBuilder.VbsAction();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type" -> action.type = readString(reader);
+                case "block" -> action.block = readString(reader);
+                case "facing" -> action.facing = readString(reader);
+                case "from" -> action.from = readPoint(reader);
+                case "to" -> action.to = readPoint(reader);
+                case "at" -> action.at = readPoints(reader);
+                case "center" -> action.center = readPoint(reader);
+                case "radius" -> action.radius = readInt(reader);
+                case "height" -> action.height = readInt(reader);
+                case "axis" -> action.axis = readString(reader);
+                case "hollow" -> action.hollow = readBoolean(reader);
+                case "half" -> action.half = readString(reader);
+                case "target" -> action.target = readString(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return action;
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER || token == JsonToken.BOOLEAN) {
+            return token == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean()) : reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * 读取整数，小数四舍五入；不是数字时返回 0。
+     */
+    private static int readInt(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return (int) Math.round(reader.nextDouble());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        reader.skipValue();
+        return 0;
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
+    }
+
+    /**
+     * 读取 [x,y,z]；元素不足 3 个或不是数组时返回 null，多余元素忽略。
+     */
+    private static int[] readPoint(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        int[] point = new int[3];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count < 3) {
+                point[count++] = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return count == 3 ? point : null;
+    }
+
+    /**
+     * 读取 [[x,y,z],...] 为扁平的 xyz 数组，无效的点被跳过。
+     */
+    private static int[] readPoints(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        int[] flat = new int[48];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int[] point = readPoint(reader);
+            if (point == null) {
+                continue;
+            }
+            if (size + 3 > flat.length) {
+                flat = Arrays.copyOf(flat, flat.length * 2);
+            }
+            flat[size++] = point[0];
+            flat[size++] = point[1];
+            flat[size++] = point[2];
+        }
+        reader.endArray();
+        return Arrays.copyOf(flat, size);
+    }
+
+    static void writeAction(JsonWriter out, StructureBuilder.VbsAction action) throws IOException {
+        if (action == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("type").value(action.type);
+        out.name("block").value(action.block);
+        if (action.from != null) {
+            writePoint(out.name("from"), action.from, 0);
+        }
+        if (action.to != null) {
+            writePoint(out.name("to"), action.to, 0);
+        }
+        if (action.at != null) {
+            out.name("at").beginArray();
+            for (int i = 0; i + 2 < action.at.length; i += 3) {
+                writePoint(out, action.at, i);
+            }
+            out.endArray();
+        }
+        if (action.center != null) {
+            writePoint(out.name("center"), action.center, 0);
+        }
+        if (action.radius != 0) {
+            out.name("radius").value(action.radius);
+        }
+        if (action.height != 0) {
+            out.name("height").value(action.height);
+        }
+        if (action.axis != null) {
+            out.name("axis").value(action.axis);
+        }
+        if (action.hollow) {
+            out.name("hollow").value(true);
+        }
+        if (action.half != null) {
+            out.name("half").value(action.half);
+        }
+        if (action.target != null) {
+            out.name("target").value(action.target);
+        }
+        if (action.facing != null) {
+            out.name("facing").value(action.facing);
+        }
+        out.endObject();
+    }
+
+    private static void writePoint(JsonWriter out, int[] coords, int offset) throws IOException {
+        out.beginArray().value(coords[offset]).value(coords[offset + 1]).value(coords[offset + 2]).endArray();
+    }
+
+    public static final class ActionAdapter extends TypeAdapter<StructureBuilder.VbsAction> {
+        @Override
+        public void write(JsonWriter out, StructureBuilder.VbsAction action) throws IOException {
+            writeAction(out, action);
+        }
+
+        @Override
+        public StructureBuilder.VbsAction read(JsonReader in) throws IOException {
+            return readAction(in);
+        }
+    }
+}
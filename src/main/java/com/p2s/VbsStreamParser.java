@@ -0,0 +1,150 @@
+package com.p2s;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * 增量识别流式输出中的 VBS 结构：逐字符跟踪 JSON 嵌套层级与字符串状态，
+ * 根对象的 {@code palette} 对象与 {@code structure} 数组中的每个层对象一闭合就交给 {@link VbsReader} 解码并回调。
+ * 根对象之前的文字（说明、代码块标记）被忽略。这里只负责尽早交付，最终结果仍以完整内容的严格解析为准。
+ * 不是线程安全的，由读取响应的线程独占。
+ */
+final class VbsStreamParser {
+    private final LLMService.StreamListener listener;
+    private final StringBuilder text = new StringBuilder();
+    private int pos;
+    private boolean started;
+    private boolean finished;
+    private int depth;
+    private boolean inString;
+    private boolean escape;
+    private int stringStart;
+    // 根对象一层上最近读完的字符串与当前键
+    private String lastString;
+    private String key;
+    private int valueStart = -1;
+    private boolean inStructure;
+    private int layerStart = -1;
+    private int layers;
+    // 有一层解不开之后不再回调后续的层，保证已回调的层始终是完整结果中 structure 的前缀
+    private boolean broken;
+
+    VbsStreamParser(LLMService.StreamListener listener) {
+        this.listener = listener;
+    }
+
+    void feed(CharSequence piece) {
+        text.append(piece);
+        for (; pos < text.length() && !finished; pos++) {
+            char c = text.charAt(pos);
+            if (!started) {
+                if (c == '{') {
+                    started = true;
+                    depth = 1;
+                }
+                continue;
+            }
+            if (inString) {
+                if (escape) {
+                    escape = false;
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 1) {
+                        lastString = text.substring(stringStart + 1, pos);
+                    }
+                }
+                continue;
+            }
+            switch (c) {
+                case '"' -> {
+                    inString = true;
+                    stringStart = pos;
+                    markNonLayer();
+                }
+                case ':' -> {
+                    if (depth == 1) {
+                        key = lastString;
+                    }
+                }
+                case ',' -> {
+                    if (depth == 1) {
+                        key = null;
+                    }
+                }
+                case '{', '[' -> {
+                    if (depth == 1) {
+                        valueStart = pos;
+                        inStructure = c == '[' && "structure".equals(key);
+                    } else if (depth == 2 && inStructure && c == '{') {
+                        layerStart = pos;
+                    } else {
+                        markNonLayer();
+                    }
+                    depth++;
+                }
+                case '}', ']' -> {
+                    depth--;
+                    if (depth == 0) {
+                        finished = true;
+                    } else if (depth == 1 && valueStart >= 0) {
+                        if (c == '}' && "palette".equals(key)) {
+                            emitPalette(text.substring(valueStart, pos + 1));
+                        }
+                        valueStart = -1;
+                        inStructure = false;
+                    } else if (depth == 2 && inStructure && c == '}' && layerStart >= 0) {
+                        emitLayer(text.substring(layerStart, pos + 1));
+                        layerStart = -1;
+                    }
+                }
+                default -> {
+                    if (!Character.isWhitespace(c)) {
+                        markNonLayer();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * structure 数组里出现了不是对象的元素（null 等）：完整解析会把它算作一层，之后的层不再回调以免错位。
+     */
+    private void markNonLayer() {
+        if (depth == 2 && inStructure) {
+            broken = true;
+        }
+    }
+
+    private void emitPalette(String json) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.setLenient(true);
+            Map<String, String> palette = VbsReader.readPalette(reader);
+            listener.onPalette(palette);
+        } catch (Exception e) {
+            P2SMod.LOGGER.debug("Streamed palette not decodable yet: {}", e.getMessage());
+        }
+    }
+
+    private void emitLayer(String json) {
+        if (broken) {
+            return;
+        }
+        StructureBuilder.VbsLayer layer;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.setLenient(true);
+            layer = VbsReader.readLayer(reader);
+        } catch (Exception e) {
+            // 解不开的层交给最终的完整解析处理
+            P2SMod.LOGGER.debug("Streamed layer {} not decodable: {}", layers, e.getMessage());
+            broken = true;
+            return;
+        }
+        listener.onLayer(layers++, layer);
+    }
+}
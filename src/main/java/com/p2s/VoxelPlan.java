@@ -0,0 +1,396 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 编译后的结构：按世界对齐的 16³ section 存放调色板索引（0 表示该位置不写入）。
+ * 重叠动作在编译期按“后写覆盖先写”合并，每个世界位置最多写一次。
+ * 放置、预览和导出都基于这份中间表示。
+ */
+public final class VoxelPlan {
+    public static final int SECTION_VOLUME = 16 * 16 * 16;
+
+    private final BlockPos origin;
+    private final BlockState[] palette;
+    private final long[] sectionKeys;
+    private final short[][] sections;
+    private final long blockCount;
+    private final int minX, minY, minZ, maxX, maxY, maxZ;
+
+    private VoxelPlan(BlockPos origin, BlockState[] palette, long[] sectionKeys, short[][] sections, long blockCount,
+                      int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        this.origin = origin;
+        this.palette = palette;
+        this.sectionKeys = sectionKeys;
+        this.sections = sections;
+        this.blockCount = blockCount;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+    }
+
+    /**
+     * section 内的局部索引，布局与原版 PalettedContainer 一致（y 高位，x 低位）。
+     */
+    public static int localIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    public BlockPos origin() {
+        return origin;
+    }
+
+    /**
+     * 调色板索引对应的方块状态，索引从 1 开始。
+     */
+    public BlockState state(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    public int paletteSize() {
+        return palette.length - 1;
+    }
+
+    public int sectionCount() {
+        return sectionKeys.length;
+    }
+
+    public long sectionKey(int index) {
+        return sectionKeys[index];
+    }
+
+    public short[] section(int index) {
+        return sections[index];
+    }
+
+    public long blockCount() {
+        return blockCount;
+    }
+
+    public boolean isEmpty() {
+        return blockCount == 0;
+    }
+
+    public int minX() {
+        return minX;
+    }
+
+    public int minY() {
+        return minY;
+    }
+
+    public int minZ() {
+        return minZ;
+    }
+
+    public int maxX() {
+        return maxX;
+    }
+
+    public int maxY() {
+        return maxY;
+    }
+
+    public int maxZ() {
+        return maxZ;
+    }
+
+    /**
+     * 按 section 顺序遍历所有写入（世界坐标）。
+     */
+    public void forEach(VoxelConsumer consumer) {
+        for (int i = 0; i < sectionKeys.length; i++) {
+            long key = sectionKeys[i];
+            int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+            int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+            int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+            short[] data = sections[i];
+            for (int local = 0; local < SECTION_VOLUME; local++) {
+                int id = data[local];
+                if (id != 0) {
+                    consumer.accept(baseX + (local & 15), baseY + (local >> 8), baseZ + ((local >> 4) & 15), palette[id]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按 section 顺序把写入送入 {@link BlockSink} 的游标，可以分多次推进；位置由 (sectionIndex, voxelIndex) 唯一确定。
+     */
+    public static final class Cursor {
+        private final VoxelPlan plan;
+        private int sectionIndex;
+        private int voxelIndex;
+
+        public Cursor(VoxelPlan plan) {
+            this.plan = plan;
+        }
+
+        /**
+         * 送出最多 {@code limit} 个写入（不调用 flush），返回实际送出的数量。
+         */
+        public int feed(BlockSink sink, int limit) {
+            int count = 0;
+            while (count < limit && sectionIndex < plan.sectionKeys.length) {
+                long key = plan.sectionKeys[sectionIndex];
+                short[] data = plan.sections[sectionIndex];
+                int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+                int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+                int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+                while (voxelIndex < SECTION_VOLUME && count < limit) {
+                    int id = data[voxelIndex];
+                    if (id != 0) {
+                        sink.add(baseX + (voxelIndex & 15), baseY + (voxelIndex >> 8), baseZ + ((voxelIndex >> 4) & 15), plan.palette[id]);
+                        count++;
+                    }
+                    voxelIndex++;
+                }
+                if (voxelIndex >= SECTION_VOLUME) {
+                    sectionIndex++;
+                    voxelIndex = 0;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * 一次性送出全部剩余写入并 flush，返回 sink 报告的写入数。
+         */
+        public long drain(BlockSink sink) {
+            long written = 0;
+            while (!isDone()) {
+                feed(sink, Integer.MAX_VALUE);
+                written += sink.flush();
+            }
+            return written;
+        }
+
+        /**
+         * 跳到 (sectionIndex, voxelIndex)，用于从检查点恢复；返回该位置之前的写入数。
+         */
+        public long seek(int sectionIndex, int voxelIndex) {
+            if (sectionIndex < 0 || sectionIndex > plan.sectionKeys.length || voxelIndex < 0 || voxelIndex >= SECTION_VOLUME) {
+                throw new IllegalArgumentException("无效的游标位置: " + sectionIndex + "/" + voxelIndex);
+            }
+            this.sectionIndex = sectionIndex;
+            this.voxelIndex = sectionIndex == plan.sectionKeys.length ? 0 : voxelIndex;
+            long before = 0;
+            for (int i = 0; i < sectionIndex; i++) {
+                before += countWrites(plan.sections[i], SECTION_VOLUME);
+            }
+            if (sectionIndex < plan.sectionKeys.length) {
+                before += countWrites(plan.sections[sectionIndex], this.voxelIndex);
+            }
+            return before;
+        }
+
+        private static int countWrites(short[] data, int end) {
+            int count = 0;
+            for (int i = 0; i < end; i++) {
+                if (data[i] != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public boolean isDone() {
+            return sectionIndex >= plan.sectionKeys.length;
+        }
+
+        public int sectionIndex() {
+            return sectionIndex;
+        }
+
+        public int voxelIndex() {
+            return voxelIndex;
+        }
+    }
+
+    @FunctionalInterface
+    public interface VoxelConsumer {
+        void accept(int x, int y, int z, BlockState state);
+    }
+
+    public static final class Builder {
+        private final BlockPos origin;
+        private final List<BlockState> palette = new ArrayList<>();
+        private final Reference2IntOpenHashMap<BlockState> paletteIndex = new Reference2IntOpenHashMap<>();
+        private final Long2ObjectOpenHashMap<short[]> sections = new Long2ObjectOpenHashMap<>();
+        private long lastKey = Long.MIN_VALUE;
+        private short[] lastSection;
+        private long blockCount;
+        private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+        public Builder(BlockPos origin) {
+            this.origin = origin;
+            this.palette.add(null); // 0 保留给“未写入”
+            this.paletteIndex.defaultReturnValue(0);
+        }
+
+        public int paletteId(BlockState state) {
+            int id = paletteIndex.getInt(state);
+            if (id == 0) {
+                id = palette.size();
+                if (id > Short.MAX_VALUE) {
+                    throw new IllegalStateException("调色板过大: " + id);
+                }
+                palette.add(state);
+                paletteIndex.put(state, id);
+            }
+            return id;
+        }
+
+        /**
+         * 当前调色板（索引 0 为 null）。
+         */
+        BlockState[] palette() {
+            return palette.toArray(new BlockState[0]);
+        }
+
+        /**
+         * 就地替换调色板中的每个状态（旋转、镜像是同一方块内的一一映射，索引不变），体素数据不需要改动。
+         */
+        void transformPalette(PlanTransform transform) {
+            if (transform.isIdentity()) {
+                return;
+            }
+            BlockState[] table = transform.table(palette());
+            paletteIndex.clear();
+            for (int id = 1; id < table.length; id++) {
+                palette.set(id, table[id]);
+                paletteIndex.put(table[id], id);
+            }
+        }
+
+        /**
+         * 写入世界坐标处的调色板索引，覆盖之前的写入。
+         */
+        public void set(int x, int y, int z, int paletteId) {
+            short[] data = sectionFor(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+            int local = localIndex(x, y, z);
+            if (data[local] == 0) {
+                blockCount++;
+                if (x < minX) minX = x;
+                if (y < minY) minY = y;
+                if (z < minZ) minZ = z;
+                if (x > maxX) maxX = x;
+                if (y > maxY) maxY = y;
+                if (z > maxZ) maxZ = z;
+            }
+            data[local] = (short) paletteId;
+        }
+
+        /**
+         * 只在该位置尚未写入时记录，保留最早的状态。撤销记录用：同一位置在多个任务中被先后覆盖时，快照里应是最初的方块。
+         */
+        public void setIfAbsent(int x, int y, int z, BlockState state) {
+            short[] data = sectionFor(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+            if (data[localIndex(x, y, z)] == 0) {
+                set(x, y, z, paletteId(state));
+            }
+        }
+
+        /**
+         * 把另一份计划的全部写入叠加进来，重叠位置以 {@code plan} 为准（后写覆盖先写）。
+         */
+        public void addAll(VoxelPlan plan) {
+            int[] remap = new int[plan.palette.length];
+            for (int id = 1; id < remap.length; id++) {
+                remap[id] = paletteId(plan.palette[id]);
+            }
+            for (int i = 0; i < plan.sectionKeys.length; i++) {
+                long key = plan.sectionKeys[i];
+                int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+                int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+                int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+                short[] data = plan.sections[i];
+                for (int local = 0; local < SECTION_VOLUME; local++) {
+                    int id = data[local];
+                    if (id != 0) {
+                        set(baseX + (local & 15), baseY + (local >> 8), baseZ + ((local >> 4) & 15), remap[id]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 直接接管一个完整 section 的数据（用于并行光栅化后合并），该 section 之前不能被写过。
+         */
+        void addSection(long key, short[] data) {
+            if (sections.putIfAbsent(key, data) != null) {
+                throw new IllegalStateException("重复的 section: " + SectionPos.of(key));
+            }
+            int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+            int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+            int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+            for (int local = 0; local < SECTION_VOLUME; local++) {
+                if (data[local] == 0) {
+                    continue;
+                }
+                int x = baseX + (local & 15);
+                int y = baseY + (local >> 8);
+                int z = baseZ + ((local >> 4) & 15);
+                blockCount++;
+                if (x < minX) minX = x;
+                if (y < minY) minY = y;
+                if (z < minZ) minZ = z;
+                if (x > maxX) maxX = x;
+                if (y > maxY) maxY = y;
+                if (z > maxZ) maxZ = z;
+            }
+        }
+
+        public long blockCount() {
+            return blockCount;
+        }
+
+        private short[] sectionFor(long key) {
+            if (key == lastKey) {
+                return lastSection;
+            }
+            short[] data = sections.get(key);
+            if (data == null) {
+                data = new short[SECTION_VOLUME];
+                sections.put(key, data);
+            }
+            lastKey = key;
+            lastSection = data;
+            return data;
+        }
+
+        public VoxelPlan build() {
+            long[] keys = sections.keySet().toLongArray();
+            // 自下而上、按 x/z 排序，保证顺序确定且结构逐层升起
+            LongArrays.quickSort(keys, (a, b) -> {
+                int cmp = Integer.compare(SectionPos.y(a), SectionPos.y(b));
+                if (cmp != 0) {
+                    return cmp;
+                }
+                cmp = Integer.compare(SectionPos.x(a), SectionPos.x(b));
+                return cmp != 0 ? cmp : Integer.compare(SectionPos.z(a), SectionPos.z(b));
+            });
+            short[][] data = new short[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                data[i] = sections.get(keys[i]);
+            }
+            if (blockCount == 0) {
+                minX = minY = minZ = maxX = maxY = maxZ = 0;
+            }
+            return new VoxelPlan(origin, palette.toArray(new BlockState[0]), keys, data, blockCount,
+                    minX, minY, minZ, maxX, maxY, maxZ);
+        }
+    }
+}
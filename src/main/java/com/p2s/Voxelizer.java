@@ -0,0 +1,530 @@
+package com.p2s;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.minecraft.core.Direction;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 把动作形状光栅化到 {@link VoxelPlan}。包围体按 chunk 列（16x16）切成互不重叠的 tile，
+ * 每个 tile 只写自己的体素、并按原始动作顺序处理覆盖到它的形状，因此多个 tile 可以在
+ * {@link ForkJoinPool} 上并行，而结果与单线程逐个动作写入完全一致（后写覆盖先写）。
+ */
+final class Voxelizer {
+    private static final long PARALLEL_THRESHOLD = 1L << 15;
+    private static final int TILES_PER_TASK = 2;
+    private static final ForkJoinPool POOL = new ForkJoinPool(ModConfig.COMPILE_PARALLELISM, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("p2s-voxelize-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+
+    private Voxelizer() {
+    }
+
+    static void rasterize(List<Shape> shapes, VoxelPlan.Builder builder) {
+        Long2ObjectLinkedOpenHashMap<Tile> tiles = new Long2ObjectLinkedOpenHashMap<>();
+        long volume = 0;
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape shape = shapes.get(i);
+            shape.assign(i, tiles);
+            volume += shape.volume();
+        }
+        BlockState[] palette = builder.palette();
+        for (Shape shape : shapes) {
+            shape.prepare(palette);
+        }
+        Tile[] work = tiles.values().toArray(new Tile[0]);
+        if (volume < PARALLEL_THRESHOLD || work.length <= 1 || POOL.getParallelism() <= 1) {
+            for (Tile tile : work) {
+                tile.rasterize(shapes);
+            }
+        } else {
+            POOL.invoke(new TileTask(shapes, work, 0, work.length));
+        }
+        for (Tile tile : work) {
+            for (Int2ObjectMap.Entry<short[]> section : tile.sections.int2ObjectEntrySet()) {
+                builder.addSection(SectionPos.asLong(tile.chunkX, section.getIntKey(), tile.chunkZ), section.getValue());
+            }
+        }
+    }
+
+    private static void assignBox(Long2ObjectLinkedOpenHashMap<Tile> tiles, int index, int minX, int minZ, int maxX, int maxZ) {
+        for (int cx = minX >> 4; cx <= maxX >> 4; cx++) {
+            for (int cz = minZ >> 4; cz <= maxZ >> 4; cz++) {
+                tile(tiles, cx, cz).addShape(index);
+            }
+        }
+    }
+
+    /**
+     * 点是否在半径 r 的球内（以 r+0.5 为边界，小半径时更圆润）。
+     */
+    static boolean inSphere(long dx, long dy, long dz, int r) {
+        long d = 2L * r + 1;
+        return 4 * (dx * dx + dy * dy + dz * dz) < d * d;
+    }
+
+    static boolean inDisk(long du, long dv, int r) {
+        long d = 2L * r + 1;
+        return 4 * (du * du + dv * dv) < d * d;
+    }
+
+    /**
+     * 球在 (dx, dz) 这一列上 |dy| 的最大值，列不与球相交时返回 -1。
+     */
+    static int sphereHalfHeight(long dx, long dz, int r) {
+        if (!inSphere(dx, 0, dz, r)) {
+            return -1;
+        }
+        int h = (int) Math.sqrt(Math.max(0, (double) r * r + r - dx * dx - dz * dz));
+        while (h > 0 && !inSphere(dx, h, dz, r)) {
+            h--;
+        }
+        while (inSphere(dx, h + 1, dz, r)) {
+            h++;
+        }
+        return h;
+    }
+
+    /**
+     * 两点间的 3D 直线（含端点），按主轴逐格取整，结果为扁平 xyz。
+     */
+    static int[] linePoints(int x0, int y0, int z0, int x1, int y1, int z1) {
+        long dx = (long) x1 - x0;
+        long dy = (long) y1 - y0;
+        long dz = (long) z1 - z0;
+        int n = (int) Math.max(Math.abs(dx), Math.max(Math.abs(dy), Math.abs(dz)));
+        int[] points = new int[(n + 1) * 3];
+        for (int i = 0; i <= n; i++) {
+            points[i * 3] = n == 0 ? x0 : (int) (x0 + Math.floorDiv(2 * dx * i + n, 2L * n));
+            points[i * 3 + 1] = n == 0 ? y0 : (int) (y0 + Math.floorDiv(2 * dy * i + n, 2L * n));
+            points[i * 3 + 2] = n == 0 ? z0 : (int) (z0 + Math.floorDiv(2 * dz * i + n, 2L * n));
+        }
+        return points;
+    }
+
+    private static Tile tile(Long2ObjectLinkedOpenHashMap<Tile> tiles, int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(chunkX, chunkZ);
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private static final class TileTask extends RecursiveAction {
+        private final List<Shape> shapes;
+        private final Tile[] tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(List<Shape> shapes, Tile[] tiles, int from, int to) {
+            this.shapes = shapes;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    tiles[i].rasterize(shapes);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileTask(shapes, tiles, from, mid), new TileTask(shapes, tiles, mid, to));
+        }
+    }
+
+    /**
+     * 一个 chunk 列。按 section y 保存调色板索引，只由一个线程写入。
+     */
+    static final class Tile {
+        final int chunkX;
+        final int chunkZ;
+        final int minX;
+        final int minZ;
+        final IntArrayList shapes = new IntArrayList();
+        final Int2ObjectOpenHashMap<short[]> sections = new Int2ObjectOpenHashMap<>();
+        // 点集形状在本 tile 内的点（世界坐标，扁平 xyz），按形状索引存放
+        final Int2ObjectOpenHashMap<IntArrayList> points = new Int2ObjectOpenHashMap<>();
+
+        Tile(int chunkX, int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.minX = SectionPos.sectionToBlockCoord(chunkX);
+            this.minZ = SectionPos.sectionToBlockCoord(chunkZ);
+        }
+
+        int maxX() {
+            return minX + 15;
+        }
+
+        int maxZ() {
+            return minZ + 15;
+        }
+
+        void addShape(int index) {
+            if (shapes.isEmpty() || shapes.getInt(shapes.size() - 1) != index) {
+                shapes.add(index);
+            }
+        }
+
+        void rasterize(List<Shape> all) {
+            for (int i = 0; i < shapes.size(); i++) {
+                int index = shapes.getInt(i);
+                all.get(index).rasterize(this, index);
+            }
+        }
+
+        void set(int x, int y, int z, int paletteId) {
+            int sectionY = SectionPos.blockToSectionCoord(y);
+            short[] data = sections.get(sectionY);
+            if (data == null) {
+                data = new short[VoxelPlan.SECTION_VOLUME];
+                sections.put(sectionY, data);
+            }
+            data[VoxelPlan.localIndex(x, y, z)] = (short) paletteId;
+        }
+
+        int get(int x, int y, int z) {
+            short[] data = sections.get(SectionPos.blockToSectionCoord(y));
+            return data == null ? 0 : data[VoxelPlan.localIndex(x, y, z)];
+        }
+    }
+
+    /**
+     * 一个已解析调色板的动作，坐标均为世界坐标。
+     */
+    abstract static class Shape {
+        final int paletteId;
+
+        Shape(int paletteId) {
+            this.paletteId = paletteId;
+        }
+
+        /**
+         * 登记到所有与其相交的 tile。
+         */
+        abstract void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles);
+
+        /**
+         * 光栅化前、调色板已确定时调用一次。
+         */
+        void prepare(BlockState[] palette) {
+        }
+
+        /**
+         * 只写入落在 {@code tile} 内的体素。
+         */
+        abstract void rasterize(Tile tile, int index);
+
+        abstract long volume();
+    }
+
+    /**
+     * fill（实心）与 frame（只保留六个面）。
+     */
+    static final class BoxShape extends Shape {
+        private final boolean hollow;
+        private final int minX, minY, minZ, maxX, maxY, maxZ;
+
+        BoxShape(int paletteId, boolean hollow, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            super(paletteId);
+            this.hollow = hollow;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        @Override
+        void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles) {
+            assignBox(tiles, index, minX, minZ, maxX, maxZ);
+        }
+
+        @Override
+        void rasterize(Tile tile, int index) {
+            int x0 = Math.max(minX, tile.minX);
+            int x1 = Math.min(maxX, tile.maxX());
+            int z0 = Math.max(minZ, tile.minZ);
+            int z1 = Math.min(maxZ, tile.maxZ());
+            for (int x = x0; x <= x1; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    boolean wall = !hollow || x == minX || x == maxX || y == minY || y == maxY;
+                    if (wall) {
+                        for (int z = z0; z <= z1; z++) {
+                            tile.set(x, y, z, paletteId);
+                        }
+                    } else {
+                        // 内部行只有两端的面
+                        if (z0 <= minZ) {
+                            tile.set(x, y, minZ, paletteId);
+                        }
+                        if (z1 >= maxZ) {
+                            tile.set(x, y, maxZ, paletteId);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        long volume() {
+            return ((long) maxX - minX + 1) * ((long) maxY - minY + 1) * ((long) maxZ - minZ + 1);
+        }
+    }
+
+    /**
+     * sphere：以 center 为球心、radius 为半径；hollow 时只保留一格厚的外壳，half 为 upper/lower 时只取半球（穹顶）。
+     */
+    static final class SphereShape extends Shape {
+        private final int cx, cy, cz, radius;
+        private final boolean hollow;
+        private final int half;
+
+        /**
+         * @param half 0 为整球，1 为上半球，-1 为下半球
+         */
+        SphereShape(int paletteId, int cx, int cy, int cz, int radius, boolean hollow, int half) {
+            super(paletteId);
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.radius = Math.max(0, radius);
+            this.hollow = hollow;
+            this.half = half;
+        }
+
+        @Override
+        void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles) {
+            assignBox(tiles, index, cx - radius, cz - radius, cx + radius, cz + radius);
+        }
+
+        @Override
+        void rasterize(Tile tile, int index) {
+            int x0 = Math.max(cx - radius, tile.minX);
+            int x1 = Math.min(cx + radius, tile.maxX());
+            int z0 = Math.max(cz - radius, tile.minZ);
+            int z1 = Math.min(cz + radius, tile.maxZ());
+            for (int x = x0; x <= x1; x++) {
+                int dx = x - cx;
+                for (int z = z0; z <= z1; z++) {
+                    int dz = z - cz;
+                    int h = sphereHalfHeight(dx, dz, radius);
+                    if (h < 0) {
+                        continue;
+                    }
+                    int from = half > 0 ? 0 : -h;
+                    int to = half < 0 ? 0 : h;
+                    for (int dy = from; dy <= to; dy++) {
+                        if (hollow && isInterior(dx, dy, dz)) {
+                            continue;
+                        }
+                        tile.set(x, cy + dy, z, paletteId);
+                    }
+                }
+            }
+        }
+
+        private boolean isInterior(int dx, int dy, int dz) {
+            return inSphere(dx + 1, dy, dz, radius) && inSphere(dx - 1, dy, dz, radius)
+                    && inSphere(dx, dy + 1, dz, radius) && inSphere(dx, dy - 1, dz, radius)
+                    && inSphere(dx, dy, dz + 1, radius) && inSphere(dx, dy, dz - 1, radius);
+        }
+
+        @Override
+        long volume() {
+            long d = 2L * radius + 1;
+            return d * d * d;
+        }
+    }
+
+    /**
+     * cylinder：底面圆心 center、半径 radius，沿 axis（x/y/z）正方向延伸 height 格；hollow 时只保留侧壁。
+     */
+    static final class CylinderShape extends Shape {
+        private final int cx, cy, cz, radius, height;
+        private final Direction.Axis axis;
+        private final boolean hollow;
+        private final int minX, minY, minZ, maxX, maxY, maxZ;
+
+        CylinderShape(int paletteId, int cx, int cy, int cz, int radius, int height, Direction.Axis axis, boolean hollow) {
+            super(paletteId);
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.radius = Math.max(0, radius);
+            this.height = Math.max(1, height);
+            this.axis = axis;
+            this.hollow = hollow;
+            int r = this.radius;
+            int len = this.height - 1;
+            this.minX = cx - (axis == Direction.Axis.X ? 0 : r);
+            this.maxX = cx + (axis == Direction.Axis.X ? len : r);
+            this.minY = cy - (axis == Direction.Axis.Y ? 0 : r);
+            this.maxY = cy + (axis == Direction.Axis.Y ? len : r);
+            this.minZ = cz - (axis == Direction.Axis.Z ? 0 : r);
+            this.maxZ = cz + (axis == Direction.Axis.Z ? len : r);
+        }
+
+        @Override
+        void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles) {
+            assignBox(tiles, index, minX, minZ, maxX, maxZ);
+        }
+
+        @Override
+        void rasterize(Tile tile, int index) {
+            int x0 = Math.max(minX, tile.minX);
+            int x1 = Math.min(maxX, tile.maxX());
+            int z0 = Math.max(minZ, tile.minZ);
+            int z1 = Math.min(maxZ, tile.maxZ());
+            for (int x = x0; x <= x1; x++) {
+                for (int z = z0; z <= z1; z++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        int du = switch (axis) {
+                            case X -> y - cy;
+                            case Y, Z -> x - cx;
+                        };
+                        int dv = switch (axis) {
+                            case X, Y -> z - cz;
+                            case Z -> y - cy;
+                        };
+                        if (!inDisk(du, dv, radius)) {
+                            continue;
+                        }
+                        if (hollow && inDisk(du + 1, dv, radius) && inDisk(du - 1, dv, radius)
+                                && inDisk(du, dv + 1, radius) && inDisk(du, dv - 1, radius)) {
+                            continue;
+                        }
+                        tile.set(x, y, z, paletteId);
+                    }
+                }
+            }
+        }
+
+        @Override
+        long volume() {
+            long d = 2L * radius + 1;
+            return d * d * height;
+        }
+    }
+
+    /**
+     * replace：在区域内把编译计划中已有的 target 方块（不论朝向）替换为新方块；未写入的位置保持不变。
+     */
+    static final class ReplaceShape extends Shape {
+        private final Block target;
+        private final int minX, minY, minZ, maxX, maxY, maxZ;
+        private boolean[] matches;
+
+        ReplaceShape(int paletteId, Block target, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            super(paletteId);
+            this.target = target;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        @Override
+        void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles) {
+            assignBox(tiles, index, minX, minZ, maxX, maxZ);
+        }
+
+        @Override
+        void prepare(BlockState[] palette) {
+            matches = new boolean[palette.length];
+            for (int i = 1; i < palette.length; i++) {
+                matches[i] = palette[i].is(target);
+            }
+        }
+
+        @Override
+        void rasterize(Tile tile, int index) {
+            int x0 = Math.max(minX, tile.minX);
+            int x1 = Math.min(maxX, tile.maxX());
+            int z0 = Math.max(minZ, tile.minZ);
+            int z1 = Math.min(maxZ, tile.maxZ());
+            for (int x = x0; x <= x1; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = z0; z <= z1; z++) {
+                        int current = tile.get(x, y, z);
+                        if (current != 0 && matches[current]) {
+                            tile.set(x, y, z, paletteId);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        long volume() {
+            return ((long) maxX - minX + 1) * ((long) maxY - minY + 1) * ((long) maxZ - minZ + 1);
+        }
+    }
+
+    /**
+     * set / line：离散点集，登记时按 tile 分桶，保持原始顺序。
+     */
+    static final class PointShape extends Shape {
+        private final int[] points;
+
+        PointShape(int paletteId, int[] points) {
+            super(paletteId);
+            this.points = points;
+        }
+
+        @Override
+        void assign(int index, Long2ObjectLinkedOpenHashMap<Tile> tiles) {
+            for (int i = 0; i + 2 < points.length; i += 3) {
+                Tile tile = tile(tiles, points[i] >> 4, points[i + 2] >> 4);
+                tile.addShape(index);
+                IntArrayList bucket = tile.points.get(index);
+                if (bucket == null) {
+                    bucket = new IntArrayList();
+                    tile.points.put(index, bucket);
+                }
+                bucket.add(points[i]);
+                bucket.add(points[i + 1]);
+                bucket.add(points[i + 2]);
+            }
+        }
+
+        @Override
+        void rasterize(Tile tile, int index) {
+            IntArrayList bucket = tile.points.get(index);
+            if (bucket == null) {
+                return;
+            }
+            int[] coords = bucket.elements();
+            for (int i = 0; i + 2 < bucket.size(); i += 3) {
+                tile.set(coords[i], coords[i + 1], coords[i + 2], paletteId);
+            }
+        }
+
+        @Override
+        long volume() {
+            return points.length / 3;
+        }
+    }
+}